@@ -16,18 +16,24 @@
 package com.rising.settings.fragments;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.Context;
 import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemProperties;
 import android.preference.PreferenceManager;
-import android.provider.Settings;
+import android.text.format.Formatter;
 import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
@@ -36,6 +42,8 @@ import androidx.core.content.FileProvider;
 import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceScreen;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.android.internal.logging.nano.MetricsProto;
 import com.android.settings.R;
@@ -52,20 +60,27 @@ import com.android.settings.preferences.SecureSettingSwitchPreference;
 import com.android.settings.preferences.SystemSettingListPreference;
 import com.android.settings.preferences.SystemSettingSeekBarPreference;
 import com.android.settings.preferences.SystemSettingSwitchPreference;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.rising.settings.fragments.backup.AutoBackupJobService;
+import com.rising.settings.fragments.backup.BackupBenchmark;
+import com.rising.settings.fragments.backup.BackupFormat;
+import com.rising.settings.fragments.backup.PreferenceKeyIndex;
+import com.rising.settings.fragments.backup.RestoreDiff;
+import com.rising.settings.fragments.backup.RestoreDiffAdapter;
+import com.rising.settings.fragments.backup.RestoreJournal;
+import com.rising.settings.fragments.backup.RestoreTask;
+import com.rising.settings.fragments.backup.SettingsCapture;
+import com.rising.settings.fragments.backup.SettingsWriter;
+import com.rising.settings.fragments.backup.SnapshotStore;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @SearchIndexable
 public class Backup extends SettingsPreferenceFragment {
@@ -75,12 +90,35 @@ public class Backup extends SettingsPreferenceFragment {
     private static final String RESTORE_PERSONALIZATION_SETTINGS = "restore_personalization_settings";
     private static final String UPLOAD_BACKUP_TO_DRIVE = "upload_backup_to_drive";
     private static final String DOWNLOAD_BACKUP_FROM_DRIVE = "download_backup_from_drive";
+    private static final String BACKUP_PERSONALIZATION_ONLY = "backup_personalization_only";
+    private static final String RESTORE_ONLY_CHANGED = "restore_only_changed_settings";
+    private static final String AUTO_BACKUP_ENABLED = "auto_backup_enabled";
+    private static final String RESTORE_AUTO_BACKUP = "restore_auto_backup";
+    private static final String TAKE_SETTINGS_SNAPSHOT = "take_settings_snapshot";
+    private static final String RESTORE_SETTINGS_SNAPSHOT = "restore_settings_snapshot";
+    private static final String UNDO_LAST_RESTORE = "undo_last_restore";
+    private static final String RUN_BACKUP_BENCHMARK = "run_backup_benchmark";
+    private static final String SNAPSHOT_EXPORT_FILE_NAME = "settings_snapshot_export.rsbk";
+    private static final String BACKUP_COMPACT_FORMAT = "backup_compact_format";
+    private static final String BACKUP_FILE_NAME = "personalization_settings_backup";
+    private static final String[] BACKUP_MIME_TYPES = {
+            BackupFormat.JSON.getMimeType(), BackupFormat.BINARY.getMimeType() };
 
     private ActivityResultLauncher<Intent> backupLauncher;
     private ActivityResultLauncher<Intent> restoreLauncher;
     private ActivityResultLauncher<Intent> uploadLauncher;
     private ActivityResultLauncher<Intent> downloadLauncher;
 
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private RestoreTask mRestoreTask;
+    // A restore that outlived a configuration change, picked up by the next instance
+    private static RestoreTask sRetainedRestoreTask;
+    private AlertDialog mRestoreDialog;
+    private ProgressBar mRestoreProgressBar;
+    private Preference mUndoRestorePref;
+    private Preference mRestoreAutoBackupPref;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -109,7 +147,7 @@ public class Backup extends SettingsPreferenceFragment {
                 Uri uri = result.getData().getData();
                 if (uri != null) {
                     Log.d(TAG, "Restore URI: " + uri.toString());
-                    restoreSettings(mContext, uri);
+                    previewRestore(mContext, uri);
                 } else {
                     Log.e(TAG, "Restore URI is null");
                 }
@@ -138,7 +176,7 @@ public class Backup extends SettingsPreferenceFragment {
                 Uri uri = result.getData().getData();
                 if (uri != null) {
                     Log.d(TAG, "Download URI: " + uri.toString());
-                    restoreSettings(mContext, uri);
+                    previewRestore(mContext, uri);
                 } else {
                     Log.e(TAG, "Download URI is null");
                 }
@@ -182,6 +220,82 @@ public class Backup extends SettingsPreferenceFragment {
             downloadBackupFromDrive();
             return true;
         });
+
+        // Automatic backups while idle and charging
+        Preference autoBackupPref = findPreference(AUTO_BACKUP_ENABLED);
+        if (autoBackupPref != null && !AutoBackupJobService.isAvailable(mContext)) {
+            // JobScheduler refuses a service that is not declared as a job service
+            Log.w(TAG, "Automatic backup service unavailable, hiding its switch");
+            autoBackupPref.setVisible(false);
+        } else if (autoBackupPref != null) {
+            autoBackupPref.setOnPreferenceChangeListener((preference, newValue) -> {
+                if ((Boolean) newValue) {
+                    if (!AutoBackupJobService.schedule(mContext)) {
+                        Toast.makeText(mContext, R.string.auto_backup_failed,
+                                Toast.LENGTH_SHORT).show();
+                        return false;
+                    }
+                } else {
+                    AutoBackupJobService.cancel(mContext);
+                }
+                return true;
+            });
+        }
+
+        // Backups stay restorable after automatic backups are turned off
+        mRestoreAutoBackupPref = findPreference(RESTORE_AUTO_BACKUP);
+        if (mRestoreAutoBackupPref != null) {
+            mRestoreAutoBackupPref.setOnPreferenceClickListener(preference -> {
+                File[] backups = AutoBackupJobService.listBackups(mContext);
+                if (backups.length == 0) {
+                    Toast.makeText(mContext, R.string.auto_backup_missing, Toast.LENGTH_SHORT).show();
+                } else {
+                    previewRestore(mContext, Uri.fromFile(backups[0]));
+                }
+                return true;
+            });
+        }
+
+        // Local incremental snapshots
+        Preference takeSnapshotPref = findPreference(TAKE_SETTINGS_SNAPSHOT);
+        if (takeSnapshotPref != null) {
+            takeSnapshotPref.setOnPreferenceClickListener(preference -> {
+                takeSnapshot(mContext);
+                return true;
+            });
+        }
+
+        Preference restoreSnapshotPref = findPreference(RESTORE_SETTINGS_SNAPSHOT);
+        if (restoreSnapshotPref != null) {
+            restoreSnapshotPref.setOnPreferenceClickListener(preference -> {
+                restoreSnapshot(mContext);
+                return true;
+            });
+        }
+
+        // Undo journal of the last restore
+        mUndoRestorePref = findPreference(UNDO_LAST_RESTORE);
+        if (mUndoRestorePref != null) {
+            mUndoRestorePref.setEnabled(RestoreJournal.hasUndo(mContext));
+            mUndoRestorePref.setOnPreferenceClickListener(preference -> {
+                undoLastRestore(mContext);
+                return true;
+            });
+        }
+        // Does nothing after the first call in a process, e.g. on a config change
+        recoverInterruptedRestore(mContext);
+
+        Preference benchmarkPref = findPreference(RUN_BACKUP_BENCHMARK);
+        if (benchmarkPref != null) {
+            if (!Build.IS_DEBUGGABLE) {
+                prefScreen.removePreference(benchmarkPref);
+            } else {
+                benchmarkPref.setOnPreferenceClickListener(preference -> {
+                    runBenchmark(mContext);
+                    return true;
+                });
+            }
+        }
     }
 
     @Override
@@ -189,24 +303,39 @@ public class Backup extends SettingsPreferenceFragment {
         return MetricsProto.MetricsEvent.VIEW_UNKNOWN;
     }
 
+    private BackupFormat getBackupFormat(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(BACKUP_COMPACT_FORMAT, false) ? BackupFormat.BINARY : BackupFormat.JSON;
+    }
+
+    private static String getBackupFileName(BackupFormat format) {
+        return BACKUP_FILE_NAME + "." + format.getExtension();
+    }
+
+    private static void setBackupMimeTypes(Intent intent) {
+        intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_MIME_TYPES, BACKUP_MIME_TYPES);
+    }
+
     private void chooseFileLocationForBackup() {
+        BackupFormat format = getBackupFormat(getContext());
         Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
-        intent.setType("application/json");
-        intent.putExtra(Intent.EXTRA_TITLE, "personalization_settings_backup.json");
+        intent.setType(format.getMimeType());
+        intent.putExtra(Intent.EXTRA_TITLE, getBackupFileName(format));
         Log.d(TAG, "Launching file picker for backup");
         backupLauncher.launch(intent);
     }
 
     private void chooseFileForRestore() {
         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
-        intent.setType("application/json");
+        setBackupMimeTypes(intent);
         Log.d(TAG, "Launching file picker for restore");
         restoreLauncher.launch(intent);
     }
 
     private void chooseFileForUpload() {
         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
-        intent.setType("application/json");
+        setBackupMimeTypes(intent);
         Log.d(TAG, "Launching file picker for upload");
         uploadLauncher.launch(intent);
     }
@@ -215,7 +344,8 @@ public class Backup extends SettingsPreferenceFragment {
         try {
             context.getContentResolver().takePersistableUriPermission(fileUri, Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
             Intent uploadIntent = new Intent(Intent.ACTION_SEND);
-            uploadIntent.setType("application/json");
+            String mimeType = context.getContentResolver().getType(fileUri);
+            uploadIntent.setType(mimeType != null ? mimeType : BackupFormat.JSON.getMimeType());
             uploadIntent.putExtra(Intent.EXTRA_STREAM, fileUri);
             uploadIntent.setPackage("com.google.android.apps.docs");
             uploadIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION | Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -232,7 +362,7 @@ public class Backup extends SettingsPreferenceFragment {
 
     private void downloadBackupFromDrive() {
         Intent downloadIntent = new Intent(Intent.ACTION_GET_CONTENT);
-        downloadIntent.setType("application/json");
+        setBackupMimeTypes(downloadIntent);
         downloadIntent.addCategory(Intent.CATEGORY_OPENABLE);
         downloadIntent.setPackage("com.google.android.apps.docs");
 
@@ -244,144 +374,297 @@ public class Backup extends SettingsPreferenceFragment {
     }
 
     private void backupSettings(Context context, Uri uri) {
-        try {
-            JSONObject json = new JSONObject();
-
-            // Back up System settings
-            backupSettingsProvider(json, Settings.System.class, context.getContentResolver());
-            
-            // Back up Secure settings
-            backupSettingsProvider(json, Settings.Secure.class, context.getContentResolver());
-            
-            // Back up Global settings
-            backupSettingsProvider(json, Settings.Global.class, context.getContentResolver());
-
-            // Write the JSON object to the backup file
-            try (OutputStream outputStream = context.getContentResolver().openOutputStream(uri)) {
+        ContentResolver resolver = context.getContentResolver();
+        PreferenceKeyIndex keyIndex = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(BACKUP_PERSONALIZATION_ONLY, false)
+                ? PreferenceKeyIndex.getInstance(context) : null;
+        BackupFormat format = getBackupFormat(context);
+        mExecutor.execute(() -> {
+            try (OutputStream outputStream = resolver.openOutputStream(uri)) {
                 if (outputStream != null) {
-                    outputStream.write(json.toString().getBytes(StandardCharsets.UTF_8));
-                    // Save the backup locally
-                    File backupFile = new File(context.getCacheDir(), "personalization_settings_backup.json");
-                    try (OutputStream os = new FileOutputStream(backupFile)) {
-                        os.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                    // Stream the rows to the chosen file and the local copy in one pass
+                    File backupFile = new File(context.getCacheDir(), getBackupFileName(format));
+                    try (OutputStream cacheStream = new FileOutputStream(backupFile);
+                            SettingsWriter writer = format.newWriter(outputStream, cacheStream)) {
+                        SettingsCapture.write(context, writer, keyIndex);
                     }
-                    Toast.makeText(getActivity(), "Personalization settings backed up successfully!", Toast.LENGTH_SHORT).show();
+                    mHandler.post(() -> Toast.makeText(context, "Personalization settings backed up successfully!", Toast.LENGTH_SHORT).show());
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
+                mHandler.post(() -> Toast.makeText(context, "Failed to backup settings", Toast.LENGTH_SHORT).show());
+            }
+        });
+    }
+
+    private void takeSnapshot(Context context) {
+        PreferenceKeyIndex keyIndex = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(BACKUP_PERSONALIZATION_ONLY, false)
+                ? PreferenceKeyIndex.getInstance(context) : null;
+        mExecutor.execute(() -> {
+            try {
+                SnapshotStore.Stats stats = new SnapshotStore(context)
+                        .takeSnapshot(context, keyIndex);
+                Log.d(TAG, "Snapshot wrote " + stats.changed + " keys in " + stats.bytes
+                        + " bytes" + (stats.full ? " (full)" : ""));
+                mHandler.post(() -> Toast.makeText(context, context.getString(R.string.settings_snapshot_taken,
+                        stats.changed, Formatter.formatShortFileSize(context, stats.bytes)),
+                        Toast.LENGTH_SHORT).show());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to take settings snapshot", e);
+                mHandler.post(() -> Toast.makeText(context, R.string.backup_failed,
+                        Toast.LENGTH_SHORT).show());
             }
-        } catch (IOException | JSONException e) {
-            e.printStackTrace();
-            Toast.makeText(getActivity(), "Failed to backup settings", Toast.LENGTH_SHORT).show();
+        });
+    }
+
+    private void restoreSnapshot(Context context) {
+        SnapshotStore store = new SnapshotStore(context);
+        if (!store.hasSnapshot()) {
+            Toast.makeText(context, R.string.settings_snapshot_missing, Toast.LENGTH_SHORT).show();
+            return;
         }
+        // Fold the snapshot chain into one file first; the executor is serial, so
+        // the preview below only reads it once the export is complete.
+        File exportFile = new File(context.getCacheDir(), SNAPSHOT_EXPORT_FILE_NAME);
+        exportFile.delete();
+        mExecutor.execute(() -> {
+            try (SettingsWriter writer = BackupFormat.BINARY.newWriter(new FileOutputStream(exportFile))) {
+                store.export(writer);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to export settings snapshot", e);
+                exportFile.delete();
+            }
+        });
+        previewRestore(context, Uri.fromFile(exportFile));
     }
 
-    private void backupSettingsProvider(JSONObject json, Class<?> settingsClass, ContentResolver resolver) throws JSONException {
-        try {
-            // Determine which Settings class we're working with
-            Uri uri;
-            String methodName;
-            
-            if (settingsClass == Settings.System.class) {
-                uri = Settings.System.CONTENT_URI;
-                methodName = "System";
-            } else if (settingsClass == Settings.Secure.class) {
-                uri = Settings.Secure.CONTENT_URI;
-                methodName = "Secure";
-            } else if (settingsClass == Settings.Global.class) {
-                uri = Settings.Global.CONTENT_URI;
-                methodName = "Global";
-            } else {
-                return; // Unsupported settings type
+    private void undoLastRestore(Context context) {
+        mUndoRestorePref.setEnabled(false);
+        mExecutor.execute(() -> {
+            try {
+                int count = RestoreJournal.undoLastRestore(context);
+                mHandler.post(() -> Toast.makeText(context,
+                        context.getString(R.string.undo_last_restore_done, count),
+                        Toast.LENGTH_SHORT).show());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to undo last restore", e);
+                mHandler.post(() -> {
+                    updateUndoRestore(context);
+                    Toast.makeText(context, "Failed to restore settings", Toast.LENGTH_SHORT).show();
+                });
             }
-            
-            // Query all settings from this provider
-            Cursor cursor = resolver.query(uri, null, null, null, null);
-            if (cursor != null) {
-                // Create a JSON object for this settings type
-                JSONObject settingsJson = new JSONObject();
-                
-                // Get column indices
-                int nameIndex = cursor.getColumnIndex("name");
-                int valueIndex = cursor.getColumnIndex("value");
-                
-                // Extract all settings
-                while (cursor.moveToNext()) {
-                    String name = cursor.getString(nameIndex);
-                    String value = cursor.getString(valueIndex);
-                    
-                    if (name != null && value != null) {
-                        settingsJson.put(name, value);
-                    }
+        });
+    }
+
+    private void runBenchmark(Context context) {
+        Toast.makeText(context, R.string.backup_benchmark_running, Toast.LENGTH_SHORT).show();
+        mExecutor.execute(() -> {
+            StringBuilder report = new StringBuilder();
+            try {
+                for (BackupBenchmark.Result result : BackupBenchmark.run(context)) {
+                    report.append(result.format).append(' ').append(result.mode).append(' ')
+                            .append(result.rows).append(": ")
+                            .append(result.getRowsPerSecond()).append(" rows/s, ")
+                            .append(Formatter.formatShortFileSize(context, result.bytes)).append(", ")
+                            .append(Formatter.formatShortFileSize(context, result.allocatedBytes))
+                            .append(" alloc, ")
+                            .append(Formatter.formatShortFileSize(context, result.peakHeapBytes))
+                            .append(" peak\n");
                 }
-                
-                cursor.close();
-                
-                // Add this settings type to the main JSON object
-                json.put(methodName, settingsJson);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Backup benchmark failed", e);
+                report.append(e);
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error backing up " + settingsClass.getSimpleName() + " settings", e);
+            mHandler.post(() -> {
+                if (getActivity() == null) {
+                    return;
+                }
+                new AlertDialog.Builder(getActivity())
+                        .setTitle(R.string.backup_benchmark_title)
+                        .setMessage(report.toString())
+                        .setPositiveButton(android.R.string.ok, null)
+                        .show();
+            });
+        });
+    }
+
+    /**
+     * Rolls back a restore whose process died before it could commit or roll back.
+     */
+    private void recoverInterruptedRestore(Context context) {
+        mExecutor.execute(() -> {
+            try {
+                if (RestoreJournal.recoverInterrupted(context) >= 0) {
+                    mHandler.post(() -> Toast.makeText(context, R.string.restore_rolled_back,
+                            Toast.LENGTH_SHORT).show());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to roll back interrupted restore", e);
+            }
+        });
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (sRetainedRestoreTask != null) {
+            reattachRestore();
+        }
+        // An automatic backup may have been written while the screen was away
+        if (mRestoreAutoBackupPref != null) {
+            mRestoreAutoBackupPref.setEnabled(
+                    AutoBackupJobService.listBackups(getContext()).length > 0);
+        }
+    }
+
+    private void updateUndoRestore(Context context) {
+        if (mUndoRestorePref != null) {
+            mUndoRestorePref.setEnabled(RestoreJournal.hasUndo(context));
+        }
+    }
+
+    /**
+     * Compares the backup with the device in the background and asks for confirmation
+     * before restoring it.
+     */
+    private void previewRestore(Context context, Uri uri) {
+        mExecutor.execute(() -> {
+            RestoreDiff diff;
+            try {
+                diff = RestoreDiff.compute(context, uri);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to preview restore", e);
+                mHandler.post(() -> Toast.makeText(context, R.string.restore_preview_failed,
+                        Toast.LENGTH_SHORT).show());
+                return;
+            }
+            mHandler.post(() -> showRestorePreview(context, uri, diff));
+        });
+    }
+
+    private void showRestorePreview(Context context, Uri uri, RestoreDiff diff) {
+        if (getActivity() == null || isRemoving()) {
+            return;
         }
+        View view = LayoutInflater.from(getActivity()).inflate(R.layout.restore_diff_preview, null);
+        TextView summary = view.findViewById(R.id.summary);
+        summary.setText(getString(R.string.restore_preview_counts,
+                diff.getCount(RestoreDiff.ADDED), diff.getCount(RestoreDiff.CHANGED),
+                diff.getCount(RestoreDiff.UNCHANGED)));
+        RecyclerView list = view.findViewById(R.id.diff_list);
+        list.setLayoutManager(new LinearLayoutManager(getActivity()));
+        list.setHasFixedSize(true);
+        list.setAdapter(new RestoreDiffAdapter(getActivity(), diff));
+        new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.restore_preview_title)
+                .setView(view)
+                .setPositiveButton(R.string.restore_preview_apply,
+                        (dialog, which) -> restoreSettings(context, uri))
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
     }
 
     private void restoreSettings(Context context, Uri uri) {
-        try (InputStream inputStream = context.getContentResolver().openInputStream(uri)) {
-            if (inputStream != null) {
-                StringBuilder builder = new StringBuilder();
-                int ch;
-                while ((ch = inputStream.read()) != -1) {
-                    builder.append((char) ch);
-                }
+        if (mRestoreTask != null && !mRestoreTask.isCancelled()) {
+            Log.w(TAG, "Restore already in progress");
+            return;
+        }
+        boolean differential = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(RESTORE_ONLY_CHANGED, true);
+        showRestoreProgress();
+        mRestoreTask = new RestoreTask(context, uri, differential,
+                newRestoreCallback(context)).start(mExecutor);
+    }
 
-                JSONObject json = new JSONObject(builder.toString());
-                ContentResolver resolver = context.getContentResolver();
-                
-                // Restore System settings
-                if (json.has("System")) {
-                    restoreSettingsProvider(json.getJSONObject("System"), Settings.System.class, resolver);
-                }
-                
-                // Restore Secure settings
-                if (json.has("Secure")) {
-                    restoreSettingsProvider(json.getJSONObject("Secure"), Settings.Secure.class, resolver);
+    private RestoreTask.Callback newRestoreCallback(Context context) {
+        return new RestoreTask.Callback() {
+            @Override
+            public void onProgress(int percent) {
+                if (mRestoreProgressBar != null) {
+                    mRestoreProgressBar.setIndeterminate(percent < 0);
+                    mRestoreProgressBar.setProgress(Math.max(percent, 0));
                 }
-                
-                // Restore Global settings
-                if (json.has("Global")) {
-                    restoreSettingsProvider(json.getJSONObject("Global"), Settings.Global.class, resolver);
+            }
+
+            @Override
+            public void onFinished(RestoreTask.Result result) {
+                onRestoreDone();
+                updateUndoRestore(context);
+                if (getActivity() != null) {
+                    Toast.makeText(getActivity(), getString(R.string.backup_restore_success_summary,
+                            result.written, result.skipped), Toast.LENGTH_SHORT).show();
                 }
+            }
 
-                // Force refresh settings
-                context.getContentResolver().notifyChange(Settings.System.CONTENT_URI, null);
-                context.getContentResolver().notifyChange(Settings.Secure.CONTENT_URI, null);
-                context.getContentResolver().notifyChange(Settings.Global.CONTENT_URI, null);
+            @Override
+            public void onFailed(Exception e) {
+                onRestoreDone();
+                if (getActivity() != null) {
+                    Toast.makeText(getActivity(), "Failed to restore settings", Toast.LENGTH_SHORT).show();
+                }
+            }
 
-                Toast.makeText(getActivity(), "Personalization settings restored successfully!", Toast.LENGTH_SHORT).show();
+            @Override
+            public void onCancelled() {
+                onRestoreDone();
             }
-        } catch (IOException | JSONException e) {
-            e.printStackTrace();
-            Toast.makeText(getActivity(), "Failed to restore settings", Toast.LENGTH_SHORT).show();
+        };
+    }
+
+    /**
+     * Shows the progress of a restore started before a configuration change.
+     */
+    private void reattachRestore() {
+        mRestoreTask = sRetainedRestoreTask;
+        sRetainedRestoreTask = null;
+        showRestoreProgress();
+        mRestoreTask.setCallback(newRestoreCallback(mContext));
+    }
+
+    private void showRestoreProgress() {
+        mRestoreProgressBar = new ProgressBar(getActivity(), null,
+                android.R.attr.progressBarStyleHorizontal);
+        mRestoreProgressBar.setMax(100);
+        mRestoreProgressBar.setIndeterminate(true);
+        int padding = getResources().getDimensionPixelSize(R.dimen.restore_progress_padding);
+        mRestoreProgressBar.setPadding(padding, padding, padding, padding);
+        mRestoreDialog = new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.restore_in_progress_title)
+                .setView(mRestoreProgressBar)
+                .setCancelable(false)
+                .setNegativeButton(android.R.string.cancel, (dialog, which) -> {
+                    if (mRestoreTask != null) {
+                        mRestoreTask.cancel();
+                    }
+                })
+                .show();
+    }
+
+    private void onRestoreDone() {
+        mRestoreTask = null;
+        // Finished before a recreated instance could pick it up
+        sRetainedRestoreTask = null;
+        mRestoreProgressBar = null;
+        if (mRestoreDialog != null) {
+            mRestoreDialog.dismiss();
+            mRestoreDialog = null;
         }
     }
 
-    private void restoreSettingsProvider(JSONObject settingsJson, Class<?> settingsClass, ContentResolver resolver) throws JSONException {
-        try {
-            Iterator<String> keys = settingsJson.keys();
-            
-            while (keys.hasNext()) {
-                String key = keys.next();
-                String value = settingsJson.getString(key);
-                
-                if (settingsClass == Settings.System.class) {
-                    Settings.System.putString(resolver, key, value);
-                } else if (settingsClass == Settings.Secure.class) {
-                    Settings.Secure.putString(resolver, key, value);
-                } else if (settingsClass == Settings.Global.class) {
-                    Settings.Global.putString(resolver, key, value);
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error restoring " + settingsClass.getSimpleName() + " settings", e);
+    @Override
+    public void onDestroy() {
+        RestoreTask restoreTask = mRestoreTask;
+        onRestoreDone();
+        if (restoreTask != null && getActivity() != null
+                && getActivity().isChangingConfigurations()) {
+            // Keep restoring, the executor finishes the running task after shutdown
+            sRetainedRestoreTask = restoreTask;
+        } else if (restoreTask != null) {
+            restoreTask.cancel();
         }
+        mExecutor.shutdown();
+        super.onDestroy();
     }
 
     /**
@@ -393,7 +676,9 @@ public class Backup extends SettingsPreferenceFragment {
                 @Override
                 public List<String> getNonIndexableKeys(Context context) {
                     List<String> keys = super.getNonIndexableKeys(context);
-
+                    if (!Build.IS_DEBUGGABLE) {
+                        keys.add(RUN_BACKUP_BENCHMARK);
+                    }
                     return keys;
                 }
             };
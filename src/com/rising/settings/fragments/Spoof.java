@@ -19,8 +19,6 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.ContentResolver;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
@@ -29,6 +27,8 @@ import android.os.SystemProperties;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
+import android.util.Pair;
+import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
 import android.widget.LinearLayout;
@@ -45,24 +45,30 @@ import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
 import com.android.settings.search.BaseSearchIndexProvider;
 import com.android.settingslib.search.SearchIndexable;
+import com.rising.settings.fragments.spoof.AppLabelIndex;
+import com.rising.settings.fragments.spoof.GamePropsStore;
+import com.rising.settings.fragments.spoof.PifDownloader;
+import com.rising.settings.fragments.spoof.PifProfileStore;
+import com.rising.settings.fragments.spoof.PropertyWriter;
+import com.rising.settings.fragments.spoof.SpoofExecutor;
+import com.rising.settings.fragments.spoof.SpoofJsonParser;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.RejectedExecutionException;
 
 @SearchIndexable
 public class Spoof extends SettingsPreferenceFragment implements Preference.OnPreferenceChangeListener {
@@ -76,8 +82,11 @@ public class Spoof extends SettingsPreferenceFragment implements Preference.OnPr
     private static final String KEY_PIF_JSON_FILE_PREFERENCE = "pif_json_file_preference";
     private static final String KEY_GAME_PROPS_JSON_FILE_PREFERENCE = "game_props_json_file_preference";
     private static final String KEY_UPDATE_JSON_BUTTON = "update_pif_json";
+    private static final String KEY_PIF_PROFILES = "pif_profiles";
     private static final String SYS_ENABLE_TENSOR_FEATURES = "persist.sys.features.tensor";
     private static final String SYS_APP_SPOOF_SELECTOR = "app_spoof_selector";
+    private static final String SYS_SPOOF_EXTRA = "persist.sys.spoof.extra";
+    private static final long FILTER_DEBOUNCE_MS = 150;
 
     private boolean isPixelDevice;
     private boolean includeSystemApps = false;
@@ -95,11 +104,13 @@ public class Spoof extends SettingsPreferenceFragment implements Preference.OnPr
     private Preference mAppSpoofSelector;
 
     private Handler mHandler;
+    private SpoofExecutor mExecutor;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mHandler = new Handler();
+        mExecutor = new SpoofExecutor(TAG);
         addPreferencesFromResource(R.xml.rising_settings_spoof);
 
         mGamePropsSpoof = findPreference(SYS_GAMEPROP_ENABLED);
@@ -172,6 +183,14 @@ public class Spoof extends SettingsPreferenceFragment implements Preference.OnPr
             return true;
         });
 
+        Preference pifProfilesPref = findPreference(KEY_PIF_PROFILES);
+        if (pifProfilesPref != null) {
+            pifProfilesPref.setOnPreferenceClickListener(preference -> {
+                showPifProfilesDialog();
+                return true;
+            });
+        }
+
         Preference showPropertiesPref = findPreference("show_pif_properties");
         if (showPropertiesPref != null) {
             showPropertiesPref.setOnPreferenceClickListener(preference -> {
@@ -181,6 +200,25 @@ public class Spoof extends SettingsPreferenceFragment implements Preference.OnPr
         }
     }
 
+    @Override
+    public void onViewCreated(View view, Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        mExecutor.setResultsEnabled(true);
+    }
+
+    @Override
+    public void onDestroyView() {
+        mExecutor.setResultsEnabled(false);
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onDestroy() {
+        mExecutor.shutdown();
+        mHandler.removeCallbacksAndMessages(null);
+        super.onDestroy();
+    }
+
     private boolean isMainlineTensorModel(String model) {
         return model.matches("Pixel [8-9][a-zA-Z ]*");
     }
@@ -210,22 +248,10 @@ public class Spoof extends SettingsPreferenceFragment implements Preference.OnPr
         StringBuilder properties = new StringBuilder();
         try {
             JSONObject jsonObject = new JSONObject();
-            String[] keys = {
-                "persist.sys.pihooks_ID",
-                "persist.sys.pihooks_BRAND",
-                "persist.sys.pihooks_DEVICE",
-                "persist.sys.pihooks_FINGERPRINT",
-                "persist.sys.pihooks_MANUFACTURER",
-                "persist.sys.pihooks_MODEL",
-                "persist.sys.pihooks_PRODUCT",
-                "persist.sys.pihooks_SECURITY_PATCH",
-                "persist.sys.pihooks_DEVICE_INITIAL_SDK_INT"
-            };
-            for (String key : keys) {
-                String value = SystemProperties.get(key, null);
+            for (String key : PifProfileStore.PROFILE_KEYS) {
+                String value = SystemProperties.get(PifProfileStore.PROPERTY_PREFIX + key, null);
                 if (value != null) {
-                    String buildKey = key.replace("persist.sys.pihooks_", "");
-                    jsonObject.put(buildKey, value);
+                    jsonObject.put(key, value);
                 }
             }
             properties.append(jsonObject.toString(4));
@@ -241,195 +267,327 @@ public class Spoof extends SettingsPreferenceFragment implements Preference.OnPr
     }
 
     private void updatePropertiesFromUrl(String urlString) {
-        new Thread(() -> {
-            try {
-                URL url = new URL(urlString);
-                HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-                try (InputStream inputStream = urlConnection.getInputStream()) {
-                    String json = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
-                    Log.d(TAG, "Downloaded JSON data: " + json);
-                    JSONObject jsonObject = new JSONObject(json);
-                    String spoofedModel = jsonObject.optString("MODEL", "Unknown model");
-                    for (Iterator<String> it = jsonObject.keys(); it.hasNext(); ) {
-                        String key = it.next();
-                        String value = jsonObject.getString(key);
-                        Log.d(TAG, "Setting property: persist.sys.pihooks_" + key + " = " + value);
-                        SystemProperties.set("persist.sys.pihooks_" + key, value);
-                    }
-                    mHandler.post(() -> {
-                        String toastMessage = getString(R.string.toast_spoofing_success, spoofedModel);
-                        Toast.makeText(getContext(), toastMessage, Toast.LENGTH_LONG).show();
-                    });
-
-                } finally {
-                    urlConnection.disconnect();
+        Context context = getContext().getApplicationContext();
+        // Resolves to the spoofed model and what activating the profile wrote
+        mExecutor.submit("updatePropertiesFromUrl", () -> {
+            PifDownloader downloader = new PifDownloader(context, urlString);
+            PifDownloader.Result result = downloader.fetch();
+            Map<String, String> profile = SpoofJsonParser.parsePif(
+                    new ByteArrayInputStream(result.payload.getBytes(StandardCharsets.UTF_8)));
+            // Activated even when not modified, another stored profile may be active.
+            // Throws without committing if the profile could not be applied.
+            PropertyWriter.Report report = saveAndActivatePifProfile(context, profile);
+            downloader.commit(result);
+            String spoofedModel = profile.getOrDefault("MODEL", "Unknown model");
+            return Pair.create(spoofedModel, report);
+        }, new SpoofExecutor.Callback<Pair<String, PropertyWriter.Report>>() {
+            @Override
+            public void onResult(Pair<String, PropertyWriter.Report> update) {
+                PropertyWriter.Report report = update.second;
+                if (!report.hasChanges()) {
+                    Toast.makeText(context, R.string.toast_spoofing_up_to_date,
+                            Toast.LENGTH_SHORT).show();
+                    return;
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Error downloading JSON or setting properties", e);
-                mHandler.post(() -> {
-                    Toast.makeText(getContext(), R.string.toast_spoofing_failure, Toast.LENGTH_LONG).show();
-                });
+                String toastMessage = context.getString(R.string.toast_spoofing_success, update.first);
+                Toast.makeText(context, toastMessage, Toast.LENGTH_LONG).show();
+                showRestartDialogIfChanged(report);
             }
-            mHandler.postDelayed(() -> {
-                SystemRestartUtils.showSystemRestartDialog(getContext());
-            }, 1250);
-        }).start();
+
+            @Override
+            public void onError(Exception e) {
+                showTaskFailedToast(e, R.string.toast_spoofing_failure);
+            }
+        });
     }
 
     private void loadPifJson(Uri uri) {
         Log.d(TAG, "Loading PIF JSON from URI: " + uri.toString());
-        try (InputStream inputStream = getActivity().getContentResolver().openInputStream(uri)) {
-            if (inputStream != null) {
-                String json = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
-                Log.d(TAG, "PIF JSON data: " + json);
-                JSONObject jsonObject = new JSONObject(json);
-                for (Iterator<String> it = jsonObject.keys(); it.hasNext(); ) {
-                    String key = it.next();
-                    String value = jsonObject.getString(key);
-                    Log.d(TAG, "Setting PIF property: persist.sys.pihooks_" + key + " = " + value);
-                    SystemProperties.set("persist.sys.pihooks_" + key, value);
+        Context context = getContext().getApplicationContext();
+        mExecutor.submit("loadPifJson", () -> {
+            try (InputStream inputStream = context.getContentResolver().openInputStream(uri)) {
+                if (inputStream == null) {
+                    throw new IOException("Unable to open " + uri);
                 }
+                Map<String, String> profile = SpoofJsonParser.parsePif(inputStream);
+                return saveAndActivatePifProfile(context, profile);
+            }
+        }, new SpoofExecutor.Callback<PropertyWriter.Report>() {
+            @Override
+            public void onResult(PropertyWriter.Report report) {
+                showRestartDialogIfChanged(report);
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error reading PIF JSON or setting properties", e);
+
+            @Override
+            public void onError(Exception e) {
+                showLoadJsonError(e);
+            }
+        });
+    }
+
+    /**
+     * Adds a PIF profile to the library and switches to it.
+     */
+    private static PropertyWriter.Report saveAndActivatePifProfile(Context context,
+            Map<String, String> profile) throws IOException {
+        PifProfileStore store = PifProfileStore.getInstance(context);
+        String name = PifProfileStore.getDefaultName(profile);
+        store.put(name, profile);
+        return store.activate(name);
+    }
+
+    private void showPifProfilesDialog() {
+        PifProfileStore store = PifProfileStore.getInstance(getContext());
+        mExecutor.submit("loadPifProfiles", store::getNames,
+                new SpoofExecutor.Callback<List<String>>() {
+            @Override
+            public void onResult(List<String> names) {
+                if (names.isEmpty()) {
+                    Toast.makeText(getContext(), R.string.pif_profiles_empty, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                String[] items = names.toArray(new String[0]);
+                int[] checked = { names.indexOf(store.getActiveName()) };
+                new AlertDialog.Builder(getContext())
+                    .setTitle(R.string.pif_profiles_title)
+                    .setSingleChoiceItems(items, checked[0], (dialog, which) -> checked[0] = which)
+                    .setPositiveButton(R.string.pif_profiles_apply, (dialog, which) -> {
+                        if (checked[0] >= 0) {
+                            activatePifProfile(store, items[checked[0]]);
+                        }
+                    })
+                    .setNeutralButton(R.string.delete, (dialog, which) -> {
+                        if (checked[0] >= 0) {
+                            deletePifProfile(store, items[checked[0]]);
+                        }
+                    })
+                    .setNegativeButton(android.R.string.cancel, null)
+                    .show();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                showTaskFailedToast(e, R.string.error_loading_properties);
+            }
+        });
+    }
+
+    private void activatePifProfile(PifProfileStore store, String name) {
+        mExecutor.submit("activatePifProfile", () -> store.activate(name),
+                new SpoofExecutor.Callback<PropertyWriter.Report>() {
+            @Override
+            public void onResult(PropertyWriter.Report report) {
+                Toast.makeText(getContext(), getString(R.string.pif_profile_applied, name),
+                        Toast.LENGTH_SHORT).show();
+                showRestartDialogIfChanged(report);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                showTaskFailedToast(e, R.string.toast_spoofing_failure);
+            }
+        });
+    }
+
+    private void deletePifProfile(PifProfileStore store, String name) {
+        mExecutor.submit("deletePifProfile", () -> {
+            store.remove(name);
+            return null;
+        }, new SpoofExecutor.Callback<Void>() {
+            @Override
+            public void onResult(Void result) {
+            }
+
+            @Override
+            public void onError(Exception e) {
+                showTaskFailedToast(e, R.string.toast_spoofing_failure);
+            }
+        });
+    }
+
+    /**
+     * Offers a restart only if a property was actually written.
+     */
+    private void showRestartDialogIfChanged(PropertyWriter.Report report) {
+        if (report == null || !report.hasChanges()) {
+            Log.d(TAG, "No property changed, skipping restart prompt");
+            return;
         }
         mHandler.postDelayed(() -> {
-            SystemRestartUtils.showSystemRestartDialog(getContext());
+            if (getContext() != null) {
+                SystemRestartUtils.showSystemRestartDialog(getContext());
+            }
         }, 1250);
     }
 
     private void loadGameSpoofingJson(Uri uri) {
         Log.d(TAG, "Loading Game Props JSON from URI: " + uri.toString());
-        try (InputStream inputStream = getActivity().getContentResolver().openInputStream(uri)) {
-            if (inputStream != null) {
-                String json = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
-                Log.d(TAG, "Game Props JSON data: " + json);
-                JSONObject jsonObject = new JSONObject(json);
-                for (Iterator<String> it = jsonObject.keys(); it.hasNext(); ) {
-                    String key = it.next();
-                    if (key.startsWith("PACKAGES_") && !key.endsWith("_DEVICE")) {
-                        String deviceKey = key + "_DEVICE";
-                        if (jsonObject.has(deviceKey)) {
-                            JSONObject deviceProps = jsonObject.getJSONObject(deviceKey);
-                            JSONArray packages = jsonObject.getJSONArray(key);
-                            for (int i = 0; i < packages.length(); i++) {
-                                String packageName = packages.getString(i);
-                                Log.d(TAG, "Spoofing package: " + packageName);
-                                setGameProps(packageName, deviceProps);
-                            }
-                        }
-                    }
+        Context context = getContext().getApplicationContext();
+        mExecutor.submit("loadGameSpoofingJson", () -> {
+            try (InputStream inputStream = context.getContentResolver().openInputStream(uri)) {
+                if (inputStream == null) {
+                    throw new IOException("Unable to open " + uri);
                 }
+                GamePropsStore store = SpoofJsonParser.parseGameProps(inputStream);
+                File file = GamePropsStore.getFile(context);
+                PropertyWriter writer = new PropertyWriter();
+                store.apply(GamePropsStore.readIfExists(file), writer);
+                PropertyWriter.Report report = writer.commit();
+                store.write(file);
+                return report;
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error reading Game Props JSON or setting properties", e);
+        }, new SpoofExecutor.Callback<PropertyWriter.Report>() {
+            @Override
+            public void onResult(PropertyWriter.Report report) {
+                showRestartDialogIfChanged(report);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                showLoadJsonError(e);
+            }
+        });
+    }
+
+    private void showLoadJsonError(Exception e) {
+        if (e instanceof SpoofJsonParser.ParseException) {
+            showInvalidJsonToast((IOException) e);
+        } else {
+            showTaskFailedToast(e, R.string.toast_spoofing_failure);
         }
-        mHandler.postDelayed(() -> {
-            SystemRestartUtils.showSystemRestartDialog(getContext());
-        }, 1250);
     }
 
-    private void setGameProps(String packageName, JSONObject deviceProps) {
-        try {
-            for (Iterator<String> it = deviceProps.keys(); it.hasNext(); ) {
-                String key = it.next();
-                String value = deviceProps.getString(key);
-                String systemPropertyKey = "persist.sys.gameprops." + packageName + "." + key;
-                SystemProperties.set(systemPropertyKey, value);
-                Log.d(TAG, "Set system property: " + systemPropertyKey + " = " + value);
-            }
-        } catch (JSONException e) {
-            Log.e(TAG, "Error parsing device properties", e);
+    /**
+     * Tells the user a task was turned away because too many are pending, or shows
+     * {@code messageRes} for any other failure.
+     */
+    private void showTaskFailedToast(Exception e, int messageRes) {
+        if (e instanceof RejectedExecutionException) {
+            Toast.makeText(getContext(), R.string.toast_spoofing_busy, Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(getContext(), messageRes, Toast.LENGTH_LONG).show();
         }
     }
 
+    private void showInvalidJsonToast(IOException e) {
+        Toast.makeText(getContext(), getString(R.string.toast_invalid_json, e.getMessage()),
+                Toast.LENGTH_LONG).show();
+    }
+
     private void showAppSelectionDialog() {
-        new Thread(() -> {
-            PackageManager pm = getContext().getPackageManager();
-            List<ApplicationInfo> allApps = pm.getInstalledApplications(0);
-            List<ApplicationInfo> filteredApps = allApps.stream()
-                    .filter(app -> includeSystemApps || (app.flags & ApplicationInfo.FLAG_SYSTEM) == 0)
-                    .filter(app -> (app.flags & ApplicationInfo.FLAG_HAS_CODE) != 0)
-                    .filter(app -> !app.packageName.equals(app.loadLabel(pm).toString())) // auto generated overlays usually use the package name as app label
-                    .sorted(Comparator.comparing(app -> app.loadLabel(pm).toString()))
-                    .collect(Collectors.toList());
-            Set<String> selectedPackages = new HashSet<>(Arrays.asList(SystemProperties.get("persist.sys.spoof.extra", "").split(",")));
-            Set<String> defaultPackages = new HashSet<>(Arrays.asList(PropsHooksUtils.DEFAULT_PACKAGES_TO_SPOOF));
-            selectedPackages.addAll(defaultPackages);
-            mHandler.post(() -> {
-                AlertDialog.Builder builder = new AlertDialog.Builder(getContext());
-                builder.setTitle(R.string.select_apps_to_spoof);
-                LinearLayout layout = new LinearLayout(getContext());
-                layout.setOrientation(LinearLayout.VERTICAL);
-                layout.setPadding(32, 32, 32, 32);
-                EditText searchBar = new EditText(getContext());
-                searchBar.setHint(R.string.search_apps);
-                layout.addView(searchBar);
-                ListView listView = new ListView(getContext());
-                layout.addView(listView);
-                ArrayAdapter<String> adapter = new ArrayAdapter<>(getContext(), android.R.layout.simple_list_item_multiple_choice);
-                listView.setAdapter(adapter);
-                listView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
-                Map<String, ApplicationInfo> appMap = new HashMap<>();
-                for (ApplicationInfo app : filteredApps) {
-                    String label = app.loadLabel(pm).toString();
-                    adapter.add(label);
-                    appMap.put(label, app);
-                }
-                for (int i = 0; i < adapter.getCount(); i++) {
-                    String label = adapter.getItem(i);
-                    ApplicationInfo app = appMap.get(label);
-                    if (app != null && selectedPackages.contains(app.packageName)) {
-                        listView.setItemChecked(i, true);
-                    }
+        showAppSelectionDialog(null);
+    }
+
+    /**
+     * @param extraPackages extra packages staged by a previous dialog, or null to
+     *         start from the current property value
+     */
+    private void showAppSelectionDialog(Set<String> extraPackages) {
+        Context appContext = getContext().getApplicationContext();
+        boolean includeSystem = includeSystemApps;
+        mExecutor.submit("loadAppLabels", () -> AppLabelIndex.build(appContext, includeSystem),
+                new SpoofExecutor.Callback<AppLabelIndex>() {
+            @Override
+            public void onResult(AppLabelIndex index) {
+                showAppSelectionDialog(index, extraPackages);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                showTaskFailedToast(e, R.string.toast_spoofing_failure);
+            }
+        });
+    }
+
+    private void showAppSelectionDialog(AppLabelIndex index, Set<String> stagedPackages) {
+        Set<String> defaultPackages = new HashSet<>(Arrays.asList(PropsHooksUtils.DEFAULT_PACKAGES_TO_SPOOF));
+        // Selections are staged here and written to the property once on save
+        Set<String> extraPackages = stagedPackages != null ? stagedPackages : readExtraPackages();
+        Set<String> selectedPackages = new HashSet<>(extraPackages);
+        selectedPackages.addAll(defaultPackages);
+        AlertDialog.Builder builder = new AlertDialog.Builder(getContext());
+        builder.setTitle(R.string.select_apps_to_spoof);
+        LinearLayout layout = new LinearLayout(getContext());
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.setPadding(32, 32, 32, 32);
+        EditText searchBar = new EditText(getContext());
+        searchBar.setHint(R.string.search_apps);
+        layout.addView(searchBar);
+        ListView listView = new ListView(getContext());
+        layout.addView(listView);
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(getContext(), android.R.layout.simple_list_item_multiple_choice);
+        listView.setAdapter(adapter);
+        listView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
+        List<AppLabelIndex.Entry> shownApps = new ArrayList<>();
+        Runnable applyFilter = () -> {
+            shownApps.clear();
+            shownApps.addAll(index.filter(searchBar.getText().toString()));
+            List<String> labels = new ArrayList<>(shownApps.size());
+            for (AppLabelIndex.Entry app : shownApps) {
+                labels.add(app.label);
+            }
+            adapter.setNotifyOnChange(false);
+            adapter.clear();
+            adapter.addAll(labels);
+            adapter.notifyDataSetChanged();
+            for (int i = 0; i < shownApps.size(); i++) {
+                listView.setItemChecked(i, selectedPackages.contains(shownApps.get(i).packageName));
+            }
+        };
+        applyFilter.run();
+        searchBar.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                // Filter once typing pauses instead of on every keystroke
+                mHandler.removeCallbacks(applyFilter);
+                mHandler.postDelayed(applyFilter, FILTER_DEBOUNCE_MS);
+            }
+            @Override
+            public void afterTextChanged(Editable s) {}
+        });
+        listView.setOnItemClickListener((parent, view, position, id) -> {
+            AppLabelIndex.Entry app = shownApps.get(position);
+            String packageName = app.packageName;
+            if (defaultPackages.contains(packageName)) {
+                Toast.makeText(getContext(), R.string.toast_app_spoofing_default_package, Toast.LENGTH_SHORT).show();
+                listView.setItemChecked(position, true);
+            } else {
+                if (listView.isItemChecked(position)) {
+                    extraPackages.add(packageName);
+                    selectedPackages.add(packageName);
+                } else {
+                    extraPackages.remove(packageName);
+                    selectedPackages.remove(packageName);
                 }
-                searchBar.addTextChangedListener(new TextWatcher() {
-                    @Override
-                    public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
-                    @Override
-                    public void onTextChanged(CharSequence s, int start, int before, int count) {
-                        String query = s.toString().toLowerCase();
-                        adapter.clear();
-                        for (ApplicationInfo app : filteredApps) {
-                            if (app.loadLabel(pm).toString().toLowerCase().contains(query)) {
-                                adapter.add(app.loadLabel(pm).toString());
-                            }
-                        }
-                    }
-                    @Override
-                    public void afterTextChanged(Editable s) {}
-                });
-                listView.setOnItemClickListener((parent, view, position, id) -> {
-                    String label = adapter.getItem(position);
-                    ApplicationInfo app = appMap.get(label);
-                    if (app != null) {
-                        String packageName = app.packageName;
-                        if (defaultPackages.contains(packageName)) {
-                            Toast.makeText(getContext(), R.string.toast_app_spoofing_default_package, Toast.LENGTH_SHORT).show();
-                            listView.setItemChecked(position, true);
-                        } else {
-                            if (listView.isItemChecked(position)) {
-                                PropsHooksUtils.addExtraPackage(packageName);
-                                selectedPackages.add(packageName);
-                                Toast.makeText(getContext(), getString(R.string.toast_app_spoofing_success_add, label), Toast.LENGTH_SHORT).show();
-                            } else {
-                                PropsHooksUtils.removeExtraPackage(packageName);
-                                selectedPackages.remove(packageName);
-                                Toast.makeText(getContext(), getString(R.string.toast_app_spoofing_success_remove, label), Toast.LENGTH_SHORT).show();
-                            }
-                        }
-                    }
-                });
-                builder.setView(layout);
-                builder.setPositiveButton(R.string.save, (dialog, which) -> SystemRestartUtils.showSystemRestartDialog(getContext()));
-                builder.setNegativeButton(android.R.string.cancel, null);
-                builder.setNeutralButton(R.string.toggle_system_apps, (dialog, which) -> {
-                    includeSystemApps = !includeSystemApps;
-                    showAppSelectionDialog();
-                });
-                builder.show();
-            });
-        }).start();
+            }
+        });
+        builder.setView(layout);
+        builder.setPositiveButton(R.string.save, (dialog, which) -> {
+            PropertyWriter.Report report = new PropertyWriter()
+                    .put(SYS_SPOOF_EXTRA, String.join(",", extraPackages))
+                    .commit();
+            showRestartDialogIfChanged(report);
+        });
+        // Cancelling drops the staged selections
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.setNeutralButton(R.string.toggle_system_apps, (dialog, which) -> {
+            includeSystemApps = !includeSystemApps;
+            showAppSelectionDialog(extraPackages);
+        });
+        builder.setOnDismissListener(dialog -> mHandler.removeCallbacks(applyFilter));
+        builder.show();
+    }
+
+    private static Set<String> readExtraPackages() {
+        Set<String> packages = new LinkedHashSet<>();
+        for (String packageName : SystemProperties.get(SYS_SPOOF_EXTRA, "").split(",")) {
+            if (!packageName.isEmpty()) {
+                packages.add(packageName);
+            }
+        }
+        return packages;
     }
 
     private void showAppSelectionDialogWithSystemApps(boolean showSystemApps) {
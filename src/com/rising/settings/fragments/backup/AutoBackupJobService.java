@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.Manifest;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes a compact backup to the app's own storage while the device
+ * is idle and charging, keeping the last {@link #MAX_GENERATIONS} backups.
+ */
+public class AutoBackupJobService extends JobService {
+
+    private static final String TAG = "AutoBackupJobService";
+    private static final int JOB_ID = 0x5253424B;
+    private static final long INTERVAL_MS = TimeUnit.DAYS.toMillis(1);
+
+    private static final String DIR_NAME = "auto_backups";
+    private static final String FILE_PREFIX = "auto_backup_";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAX_GENERATIONS = 5;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private Future<?> mFuture;
+
+    /**
+     * Whether the service is declared with the permission JobScheduler requires.
+     * Without it, scheduling throws.
+     */
+    public static boolean isAvailable(Context context) {
+        try {
+            ServiceInfo info = context.getPackageManager().getServiceInfo(
+                    new ComponentName(context, AutoBackupJobService.class), 0);
+            return Manifest.permission.BIND_JOB_SERVICE.equals(info.permission);
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Schedules the periodic backup, replacing any pending schedule.
+     *
+     * @return whether the job was scheduled
+     */
+    public static boolean schedule(Context context) {
+        JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        try {
+            JobInfo job = new JobInfo.Builder(JOB_ID,
+                    new ComponentName(context, AutoBackupJobService.class))
+                    .setRequiresDeviceIdle(true)
+                    .setRequiresCharging(true)
+                    .setPeriodic(INTERVAL_MS)
+                    .setPersisted(true)
+                    .build();
+            if (scheduler.schedule(job) == JobScheduler.RESULT_SUCCESS) {
+                return true;
+            }
+            Log.e(TAG, "Unable to schedule automatic backups");
+        } catch (IllegalArgumentException e) {
+            // The service or RECEIVE_BOOT_COMPLETED is missing from the manifest
+            Log.e(TAG, "Unable to schedule automatic backups", e);
+        }
+        return false;
+    }
+
+    public static void cancel(Context context) {
+        context.getSystemService(JobScheduler.class).cancel(JOB_ID);
+    }
+
+    /**
+     * Automatic backups on disk, newest first.
+     */
+    public static File[] listBackups(Context context) {
+        File[] files = getBackupDir(context).listFiles((dir, name) ->
+                name.startsWith(FILE_PREFIX) && !name.endsWith(TEMP_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        // File names embed a zero padded timestamp, so they sort by age
+        Arrays.sort(files, (a, b) -> b.getName().compareTo(a.getName()));
+        return files;
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        Context context = getApplicationContext();
+        mFuture = sExecutor.submit(() -> {
+            boolean success = writeBackup(context);
+            jobFinished(params, !success);
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Constraints no longer hold, let the scheduler retry later
+        if (mFuture != null) {
+            mFuture.cancel(true);
+        }
+        return true;
+    }
+
+    private static boolean writeBackup(Context context) {
+        File dir = getBackupDir(context);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + dir);
+            return false;
+        }
+        String name = String.format("%s%013d.%s", FILE_PREFIX, System.currentTimeMillis(),
+                BackupFormat.BINARY.getExtension());
+        File temp = new File(dir, name + TEMP_SUFFIX);
+        try (SettingsWriter writer = BackupFormat.BINARY.newWriter(new FileOutputStream(temp))) {
+            SettingsCapture.write(context, writer, null);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Automatic backup failed", e);
+            temp.delete();
+            return false;
+        }
+        if (Thread.currentThread().isInterrupted() || !temp.renameTo(new File(dir, name))) {
+            temp.delete();
+            return false;
+        }
+        rotate(context);
+        return true;
+    }
+
+    private static void rotate(Context context) {
+        File[] backups = listBackups(context);
+        for (int i = MAX_GENERATIONS; i < backups.length; i++) {
+            if (!backups[i].delete()) {
+                Log.w(TAG, "Unable to delete old backup " + backups[i]);
+            }
+        }
+    }
+
+    private static File getBackupDir(Context context) {
+        return new File(context.getFilesDir(), DIR_NAME);
+    }
+}
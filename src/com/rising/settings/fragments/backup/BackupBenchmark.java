@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures backup and restore against a synthetic settings provider.
+ *
+ * A {@link BenchmarkSettingsProvider} is filled with {@link #SIZES} rows and every
+ * format runs four modes over it: capturing a backup with {@link SettingsCapture},
+ * parsing the backup alone, restoring it into an empty provider with
+ * {@link SettingsRestorer}, and restoring it differentially into a provider in which
+ * half of the values differ. Each run reports throughput, bytes allocated and the
+ * peak heap growth, which a sampler thread records while the run is in progress.
+ * Only meant for debuggable builds.
+ */
+public final class BackupBenchmark {
+
+    private static final String TAG = "BackupBenchmark";
+
+    static final int[] SIZES = { 1_000, 10_000, 100_000 };
+
+    private static final String MODE_CAPTURE = "capture";
+    private static final String MODE_READ = "read";
+    private static final String MODE_RESTORE = "restore";
+    private static final String MODE_DIFF = "diff";
+    private static final int WARMUP_ROWS = 1_000;
+    private static final long HEAP_SAMPLE_INTERVAL_MS = 2;
+
+    /**
+     * Outcome of one benchmark run.
+     */
+    public static class Result {
+        public final BackupFormat format;
+        public final String mode;
+        public final int rows;
+        public final long bytes;
+        public final long elapsedMs;
+        public final long allocatedBytes;
+        /** Highest heap use during the run above the heap use at its start. */
+        public final long peakHeapBytes;
+
+        Result(BackupFormat format, String mode, int rows, long bytes, long elapsedMs,
+                long allocatedBytes, long peakHeapBytes) {
+            this.format = format;
+            this.mode = mode;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.elapsedMs = elapsedMs;
+            this.allocatedBytes = allocatedBytes;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+
+        public long getRowsPerSecond() {
+            return rows * 1000L / Math.max(1, elapsedMs);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%-6s %-7s %7d rows %9d bytes %6d ms %9d rows/s %7d KiB alloc %7d KiB peak",
+                    format, mode, rows, bytes, elapsedMs, getRowsPerSecond(),
+                    allocatedBytes / 1024, peakHeapBytes / 1024);
+        }
+    }
+
+    private BackupBenchmark() {}
+
+    /**
+     * Runs every format, size and mode. Blocks for a while, call off the main thread.
+     */
+    public static List<Result> run(Context context) throws IOException {
+        BenchmarkSettingsProvider provider = new BenchmarkSettingsProvider(context);
+        Context providerContext = provider.getProviderContext();
+        List<Result> results = new ArrayList<>();
+        for (BackupFormat format : BackupFormat.values()) {
+            // Warm up the code paths so the first measured size is not penalized
+            fill(provider, WARMUP_ROWS, false);
+            byte[] warmup = capture(providerContext, format);
+            restore(provider, warmup, false);
+
+            for (int rows : SIZES) {
+                fill(provider, rows, false);
+                HeapTracker captureTracker = HeapTracker.start();
+                byte[] backup = capture(providerContext, format);
+                results.add(captureTracker.finish(format, MODE_CAPTURE, rows, backup.length));
+
+                HeapTracker readTracker = HeapTracker.start();
+                BackupFormat.read(new ByteArrayInputStream(backup), (section, name, value) -> {});
+                results.add(readTracker.finish(format, MODE_READ, rows, backup.length));
+
+                provider.clear();
+                HeapTracker restoreTracker = HeapTracker.start();
+                restore(provider, backup, false);
+                results.add(restoreTracker.finish(format, MODE_RESTORE, rows, backup.length));
+
+                fill(provider, rows, true);
+                HeapTracker diffTracker = HeapTracker.start();
+                restore(provider, backup, true);
+                results.add(diffTracker.finish(format, MODE_DIFF, rows, backup.length));
+            }
+        }
+        provider.clear();
+        for (Result result : results) {
+            Log.i(TAG, result.toString());
+        }
+        return results;
+    }
+
+    private static byte[] capture(Context providerContext, BackupFormat format)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (SettingsWriter writer = format.newWriter(out)) {
+            SettingsCapture.write(providerContext, writer, null);
+        }
+        return out.toByteArray();
+    }
+
+    private static void restore(BenchmarkSettingsProvider provider, byte[] backup,
+            boolean differential) throws IOException {
+        try (ContentProviderClient client = provider.acquireClient()) {
+            SettingsRestorer restorer = new SettingsRestorer(client, differential);
+            BackupFormat.read(new ByteArrayInputStream(backup), restorer);
+            restorer.flush();
+        }
+    }
+
+    /**
+     * Replaces the provider contents with a synthetic table spread over the three
+     * namespaces.
+     *
+     * @param changed whether every other value differs from the one a backup of an
+     *         unchanged table holds
+     */
+    private static void fill(BenchmarkSettingsProvider provider, int rows, boolean changed) {
+        provider.clear();
+        SettingsNamespace[] namespaces = SettingsNamespace.values();
+        for (int i = 0; i < rows; i++) {
+            provider.put(namespaces[i % namespaces.length], keyName(i),
+                    value(i, changed && i % 2 == 0));
+        }
+    }
+
+    private static String keyName(int i) {
+        return "benchmark_setting_" + i;
+    }
+
+    // A mix of the value shapes found in the settings tables
+    private static String value(int i, boolean changed) {
+        int v = changed ? i + 1 : i;
+        switch (i % 4) {
+            case 0:
+                return Integer.toString(v % 2);
+            case 1:
+                return Integer.toString(v * 31);
+            case 2:
+                return "com.android.value." + v;
+            default:
+                return "{\"id\":" + v + ",\"enabled\":true}";
+        }
+    }
+
+    /**
+     * Records time, allocations and heap use of a run. Heap use is sampled on a
+     * separate thread for as long as the run lasts.
+     */
+    private static class HeapTracker implements Runnable {
+        private final long mStartMs;
+        private final long mStartAllocated;
+        private final long mStartHeap;
+        private final Thread mSampler;
+        private volatile boolean mRunning = true;
+        private volatile long mPeakHeap;
+
+        private HeapTracker() {
+            Runtime.getRuntime().gc();
+            mStartAllocated = getAllocatedBytes();
+            mStartHeap = getUsedHeap();
+            mPeakHeap = mStartHeap;
+            mSampler = new Thread(this, TAG + " heap sampler");
+            mSampler.start();
+            mStartMs = SystemClock.elapsedRealtime();
+        }
+
+        static HeapTracker start() {
+            return new HeapTracker();
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                sample();
+                try {
+                    Thread.sleep(HEAP_SAMPLE_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        Result finish(BackupFormat format, String mode, int rows, long bytes) {
+            long elapsed = SystemClock.elapsedRealtime() - mStartMs;
+            mRunning = false;
+            mSampler.interrupt();
+            try {
+                mSampler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sample();
+            return new Result(format, mode, rows, bytes, elapsed,
+                    getAllocatedBytes() - mStartAllocated, mPeakHeap - mStartHeap);
+        }
+
+        // Only called by the sampler, or by finish once the sampler has stopped
+        private void sample() {
+            mPeakHeap = Math.max(mPeakHeap, getUsedHeap());
+        }
+
+        private static long getUsedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        private static long getAllocatedBytes() {
+            String stat = Debug.getRuntimeStat("art.gc.bytes-allocated");
+            try {
+                return stat != null ? Long.parseLong(stat) : 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * File formats a personalization backup can be written in.
+ */
+public enum BackupFormat {
+    /** Human readable JSON, the original backup format. */
+    JSON("application/json", "json"),
+    /** Deflate compressed binary format, see {@link SettingsBinaryWriter}. */
+    BINARY("application/octet-stream", "rsbk");
+
+    private final String mMimeType;
+    private final String mExtension;
+
+    BackupFormat(String mimeType, String extension) {
+        mMimeType = mimeType;
+        mExtension = extension;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public String getExtension() {
+        return mExtension;
+    }
+
+    public SettingsWriter newWriter(OutputStream... outputs) throws IOException {
+        return this == BINARY ? new SettingsBinaryWriter(outputs) : new SettingsJsonWriter(outputs);
+    }
+
+    /**
+     * Detects the format from the leading bytes of a stream without consuming them.
+     */
+    public static BackupFormat detect(BufferedInputStream in) throws IOException {
+        byte[] magic = SettingsBinaryWriter.MAGIC;
+        in.mark(magic.length);
+        try {
+            for (byte expected : magic) {
+                if (in.read() != expected) {
+                    return JSON;
+                }
+            }
+            return BINARY;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Reads a backup in either format, handing every entry to the visitor.
+     *
+     * @return the number of entries visited
+     */
+    public static int read(InputStream in, SettingsVisitor visitor) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        if (detect(buffered) == BINARY) {
+            try (SettingsBinaryReader reader = new SettingsBinaryReader(buffered)) {
+                return reader.read(visitor);
+            }
+        }
+        try (SettingsJsonReader reader = new SettingsJsonReader(buffered)) {
+            return reader.read(visitor);
+        }
+    }
+}
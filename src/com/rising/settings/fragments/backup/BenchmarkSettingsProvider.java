@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.IContentProvider;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Settings;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for the settings provider, used by {@link BackupBenchmark} to
+ * drive {@link SettingsCapture} and {@link SettingsRestorer} without touching the
+ * device's settings.
+ *
+ * Every table is a name to value map. Queries return every row, inserts replace the
+ * row with the same name, and nothing is notified. Binder and database costs of the
+ * real provider are not part of the measurement.
+ */
+class BenchmarkSettingsProvider extends ContentProvider {
+
+    private static final String[] COLUMNS = { "name", "value" };
+
+    // Keyed by the table path segment, e.g. "system"
+    private final Map<String, LinkedHashMap<String, String>> mTables = new HashMap<>();
+    private final BenchmarkContext mContext;
+
+    BenchmarkSettingsProvider(Context context) {
+        mContext = new BenchmarkContext(context.getApplicationContext(), this);
+        attachInfo(mContext, null);
+    }
+
+    /**
+     * A context whose content resolver talks to this provider.
+     */
+    Context getProviderContext() {
+        return mContext;
+    }
+
+    ContentProviderClient acquireClient() {
+        return mContext.getContentResolver().acquireContentProviderClient(Settings.AUTHORITY);
+    }
+
+    synchronized void put(SettingsNamespace namespace, String name, String value) {
+        getTable(namespace.getUri()).put(name, value);
+    }
+
+    synchronized void clear() {
+        mTables.clear();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public synchronized Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        Map<String, String> table = getTable(uri);
+        return new TableCursor(table.keySet().toArray(new String[0]),
+                table.values().toArray(new String[0]));
+    }
+
+    @Override
+    public synchronized Uri insert(Uri uri, ContentValues values) {
+        getTable(uri).put(values.getAsString("name"), values.getAsString("value"));
+        return Uri.withAppendedPath(uri, values.getAsString("name"));
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    private LinkedHashMap<String, String> getTable(Uri uri) {
+        String table = uri.getPathSegments().get(0);
+        LinkedHashMap<String, String> rows = mTables.get(table);
+        if (rows == null) {
+            rows = new LinkedHashMap<>();
+            mTables.put(table, rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Read only cursor over a copy of a table's rows.
+     */
+    private static class TableCursor extends AbstractCursor {
+        private final String[] mNames;
+        private final String[] mValues;
+
+        TableCursor(String[] names, String[] values) {
+            mNames = names;
+            mValues = values;
+        }
+
+        @Override
+        public int getCount() {
+            return mNames.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return COLUMNS;
+        }
+
+        @Override
+        public String getString(int column) {
+            return column == 0 ? mNames[getPosition()] : mValues[getPosition()];
+        }
+
+        @Override
+        public short getShort(int column) {
+            return Short.parseShort(getString(column));
+        }
+
+        @Override
+        public int getInt(int column) {
+            return Integer.parseInt(getString(column));
+        }
+
+        @Override
+        public long getLong(int column) {
+            return Long.parseLong(getString(column));
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return Float.parseFloat(getString(column));
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return Double.parseDouble(getString(column));
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return getString(column) == null;
+        }
+    }
+
+    /**
+     * Application context whose resolver routes the settings authority to the
+     * benchmark provider. Everything else goes to the real context.
+     */
+    private static class BenchmarkContext extends ContextWrapper {
+        private final ContentResolver mResolver;
+
+        BenchmarkContext(Context base, BenchmarkSettingsProvider provider) {
+            super(base);
+            mResolver = new BenchmarkResolver(this, provider);
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public ContentResolver getContentResolver() {
+            return mResolver;
+        }
+    }
+
+    private static class BenchmarkResolver extends ContentResolver {
+        private final BenchmarkSettingsProvider mProvider;
+
+        BenchmarkResolver(Context context, BenchmarkSettingsProvider provider) {
+            super(context);
+            mProvider = provider;
+        }
+
+        @Override
+        protected IContentProvider acquireProvider(Context context, String authority) {
+            return Settings.AUTHORITY.equals(authority) ? mProvider.getIContentProvider() : null;
+        }
+
+        @Override
+        protected IContentProvider acquireUnstableProvider(Context context, String authority) {
+            return acquireProvider(context, authority);
+        }
+
+        @Override
+        public boolean releaseProvider(IContentProvider provider) {
+            return true;
+        }
+
+        @Override
+        public boolean releaseUnstableProvider(IContentProvider provider) {
+            return true;
+        }
+
+        @Override
+        public void unstableProviderDied(IContentProvider provider) {
+        }
+    }
+}
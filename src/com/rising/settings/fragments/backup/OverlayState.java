@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import static com.android.internal.util.android.ThemeUtils.ICON_SHAPE_KEY;
+
+import android.content.Context;
+import android.content.om.OverlayInfo;
+import android.content.om.OverlayManager;
+import android.content.om.OverlayManagerTransaction;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Captures and restores which overlay is enabled in each theme category the
+ * personalization screens manage.
+ *
+ * A category is stored as the package name of its enabled overlay, or an empty
+ * string when the category is left at the default.
+ */
+public final class OverlayState {
+
+    private static final String TAG = "OverlayState";
+
+    public static final String SECTION = "Overlays";
+
+    private static final String[] TARGETS = {
+            "android",
+            "com.android.systemui",
+            "com.android.settings",
+            "com.android.launcher3",
+            "com.android.wallpaper"
+    };
+
+    private static final Set<String> CATEGORIES = new ArraySet<>(Arrays.asList(
+            ICON_SHAPE_KEY,
+            "android.theme.customization.better_qs",
+            "android.theme.customization.brightness_slider",
+            "android.theme.customization.font",
+            "android.theme.customization.hide_ime_space",
+            "android.theme.customization.hideclock",
+            "android.theme.customization.icon_pack.android",
+            "android.theme.customization.icon_pack.launcher",
+            "android.theme.customization.icon_pack.settings",
+            "android.theme.customization.icon_pack.systemui",
+            "android.theme.customization.icon_pack.themepicker",
+            "android.theme.customization.lockscreen_clock_font",
+            "android.theme.customization.navbar",
+            "android.theme.customization.notification",
+            "android.theme.customization.powermenu",
+            "android.theme.customization.progress_bar",
+            "android.theme.customization.qs_panel",
+            "android.theme.customization.qs_ui",
+            "android.theme.customization.signal_icon",
+            "android.theme.customization.smartspace",
+            "android.theme.customization.smartspace_offset",
+            "android.theme.customization.style.android",
+            "android.theme.customization.style.settings",
+            "android.theme.customization.style.systemui",
+            "android.theme.customization.wifi_icon"));
+
+    private OverlayState() {}
+
+    /**
+     * Returns the enabled overlay of every managed category that has overlays installed.
+     */
+    public static Map<String, String> capture(Context context) {
+        Map<String, String> state = new ArrayMap<>();
+        for (Map.Entry<String, List<OverlayInfo>> entry : queryOverlays(context).entrySet()) {
+            String enabled = "";
+            for (OverlayInfo info : entry.getValue()) {
+                if (info.isEnabled()) {
+                    enabled = info.getPackageName();
+                    break;
+                }
+            }
+            state.put(entry.getKey(), enabled);
+        }
+        return state;
+    }
+
+    /**
+     * Applies the given category state with a single overlay manager transaction.
+     * Categories that already match, and overlays that are no longer installed, are left alone.
+     *
+     * @param journal receives the previous state of every category before the
+     *         transaction is committed, may be null
+     * @return the number of overlays whose state was changed
+     */
+    public static int apply(Context context, Map<String, String> state,
+            RestoreJournal journal) throws IOException {
+        if (state.isEmpty()) {
+            return 0;
+        }
+        OverlayManager overlayManager = context.getSystemService(OverlayManager.class);
+        if (overlayManager == null) {
+            return 0;
+        }
+        int userId = UserHandle.myUserId();
+        Map<String, List<OverlayInfo>> installed = queryOverlays(context);
+        OverlayManagerTransaction.Builder transaction = new OverlayManagerTransaction.Builder();
+        int changed = 0;
+        for (Map.Entry<String, String> entry : state.entrySet()) {
+            List<OverlayInfo> overlays = installed.get(entry.getKey());
+            if (overlays == null) {
+                continue;
+            }
+            String prior = "";
+            int categoryChanges = 0;
+            for (OverlayInfo info : overlays) {
+                if (info.isEnabled()) {
+                    prior = info.getPackageName();
+                }
+                boolean enable = info.getPackageName().equals(entry.getValue());
+                if (info.isEnabled() != enable) {
+                    transaction.setEnabled(info.getOverlayIdentifier(), enable, userId);
+                    categoryChanges++;
+                }
+            }
+            if (categoryChanges > 0 && journal != null) {
+                journal.record(SECTION, entry.getKey(), prior);
+            }
+            changed += categoryChanges;
+        }
+        if (changed == 0) {
+            return 0;
+        }
+        if (journal != null) {
+            journal.sync();
+        }
+        try {
+            overlayManager.commit(transaction.build());
+        } catch (SecurityException | IllegalStateException e) {
+            Log.e(TAG, "Unable to restore overlay state", e);
+            if (journal != null) {
+                throw new IOException("Overlay transaction failed", e);
+            }
+            return 0;
+        }
+        return changed;
+    }
+
+    /**
+     * Groups the installed overlays of the managed categories by category.
+     */
+    private static Map<String, List<OverlayInfo>> queryOverlays(Context context) {
+        Map<String, List<OverlayInfo>> overlays = new ArrayMap<>();
+        OverlayManager overlayManager = context.getSystemService(OverlayManager.class);
+        if (overlayManager == null) {
+            return overlays;
+        }
+        UserHandle user = UserHandle.of(UserHandle.myUserId());
+        for (String target : TARGETS) {
+            List<OverlayInfo> infos;
+            try {
+                infos = overlayManager.getOverlayInfosForTarget(target, user);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to query overlays for " + target, e);
+                continue;
+            }
+            for (OverlayInfo info : infos) {
+                String category = info.getCategory();
+                if (category == null || !CATEGORIES.contains(category)) {
+                    continue;
+                }
+                List<OverlayInfo> list = overlays.get(category);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    overlays.put(category, list);
+                }
+                list.add(info);
+            }
+        }
+        return overlays;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
+import android.util.Log;
+
+import com.android.settings.R;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the settings keys exposed by the personalization screens.
+ *
+ * The index is built from the same preference XML the search indexer reads, so it
+ * follows the screens without a hand maintained list. Keys are sorted into
+ * namespaces by preference type (SystemSetting*, SecureSetting*, GlobalSetting*);
+ * SystemProperty* preferences are collected separately.
+ */
+public final class PreferenceKeyIndex {
+
+    private static final String TAG = "PreferenceKeyIndex";
+    private static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+
+    private static final int[] SCREENS = {
+            R.xml.adaptive_playback_settings,
+            R.xml.always_on_display_schedule,
+            R.xml.battery_bar,
+            R.xml.edge_light_settings,
+            R.xml.haptics_settings,
+            R.xml.island_settings,
+            R.xml.monet_engine,
+            R.xml.network_traffic_settings,
+            R.xml.pulse_settings,
+            R.xml.qs_header_image_settings,
+            R.xml.qs_tile_layout,
+            R.xml.quick_switch,
+            R.xml.rising_aod_settings,
+            R.xml.rising_dashboard,
+            R.xml.rising_settings_ai_assistant,
+            R.xml.rising_settings_bootanimation,
+            R.xml.rising_settings_extras,
+            R.xml.rising_settings_gestures,
+            R.xml.rising_settings_lockscreen,
+            R.xml.rising_settings_lockscreen_shortcuts,
+            R.xml.rising_settings_lockscreen_widgets,
+            R.xml.rising_settings_navigation,
+            R.xml.rising_settings_notification,
+            R.xml.rising_settings_peek_display,
+            R.xml.rising_settings_qs,
+            R.xml.rising_settings_security,
+            R.xml.rising_settings_settingsui,
+            R.xml.rising_settings_smart_power_off,
+            R.xml.rising_settings_sound,
+            R.xml.rising_settings_spoof,
+            R.xml.rising_settings_status_bar,
+            R.xml.rising_settings_themes,
+            R.xml.rising_settings_toolbox,
+            R.xml.rising_settings_wallpaper,
+            R.xml.rising_settings_wallpaper_depth,
+            R.xml.smart_pixels,
+            R.xml.sound_engine_settings,
+            R.xml.status_bar_clock,
+            R.xml.volume_steps_settings
+    };
+
+    // Keys the fragments write directly instead of through a preference
+    private static final String[] EXTRA_SECURE_KEYS = {
+            "clock_style",
+            "lock_screen_custom_clock_face"
+    };
+
+    private static PreferenceKeyIndex sInstance;
+
+    private final Map<SettingsNamespace, Set<String>> mKeys = new EnumMap<>(SettingsNamespace.class);
+    private final Set<String> mSystemProperties = new HashSet<>();
+
+    public static synchronized PreferenceKeyIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PreferenceKeyIndex(context.getApplicationContext().getResources());
+        }
+        return sInstance;
+    }
+
+    private PreferenceKeyIndex(Resources res) {
+        for (SettingsNamespace namespace : SettingsNamespace.values()) {
+            mKeys.put(namespace, new HashSet<>());
+        }
+        Collections.addAll(mKeys.get(SettingsNamespace.SECURE), EXTRA_SECURE_KEYS);
+        for (int screen : SCREENS) {
+            try (XmlResourceParser parser = res.getXml(screen)) {
+                parse(parser);
+            } catch (XmlPullParserException | IOException | Resources.NotFoundException e) {
+                Log.e(TAG, "Unable to index preference screen " + screen, e);
+            }
+        }
+    }
+
+    private void parse(XmlResourceParser parser) throws XmlPullParserException, IOException {
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type != XmlPullParser.START_TAG) {
+                continue;
+            }
+            String key = parser.getAttributeValue(ANDROID_NS, "key");
+            if (key == null || key.isEmpty()) {
+                continue;
+            }
+            String tag = parser.getName();
+            String simpleName = tag.substring(tag.lastIndexOf('.') + 1);
+            if (simpleName.contains("SystemProperty")) {
+                mSystemProperties.add(key);
+                continue;
+            }
+            SettingsNamespace namespace = namespaceForPreference(simpleName);
+            if (namespace != null) {
+                mKeys.get(namespace).add(key);
+            }
+        }
+    }
+
+    private static SettingsNamespace namespaceForPreference(String simpleName) {
+        if (simpleName.contains("SystemSetting")) {
+            return SettingsNamespace.SYSTEM;
+        } else if (simpleName.contains("SecureSetting")) {
+            return SettingsNamespace.SECURE;
+        } else if (simpleName.contains("GlobalSetting")) {
+            return SettingsNamespace.GLOBAL;
+        }
+        return null;
+    }
+
+    /**
+     * Keys of the given namespace that belong to a personalization screen.
+     */
+    public Set<String> getKeys(SettingsNamespace namespace) {
+        return Collections.unmodifiableSet(mKeys.get(namespace));
+    }
+
+    /**
+     * System properties backed by a personalization screen.
+     */
+    public Set<String> getSystemProperties() {
+        return Collections.unmodifiableSet(mSystemProperties);
+    }
+}
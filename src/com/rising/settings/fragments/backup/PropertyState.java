@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.os.SystemProperties;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.rising.settings.fragments.spoof.PifProfileStore;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Captures and restores the persist.sys properties set by the personalization screens.
+ *
+ * Only whitelisted properties are read or written; anything else found in a backup
+ * is ignored.
+ */
+public final class PropertyState {
+
+    private static final String TAG = "PropertyState";
+
+    public static final String SECTION = "Properties";
+
+    // Properties written by fragments directly rather than through a preference
+    private static final String[] EXTRA_PROPERTIES = {
+            "persist.sys.gameprops.enabled",
+            "persist.sys.pixelprops.gms",
+            "persist.sys.pixelprops.gphotos",
+            "persist.sys.spoof.extra",
+            "persist.sys.wallpaper.dim_level"
+    };
+
+    private PropertyState() {}
+
+    /**
+     * Every property the backup is allowed to capture and restore.
+     */
+    public static Set<String> getWhitelist(PreferenceKeyIndex keyIndex) {
+        Set<String> whitelist = new ArraySet<>(Arrays.asList(EXTRA_PROPERTIES));
+        for (String key : PifProfileStore.PROFILE_KEYS) {
+            whitelist.add(PifProfileStore.PROPERTY_PREFIX + key);
+        }
+        for (String property : keyIndex.getSystemProperties()) {
+            if (property.startsWith("persist.sys.")) {
+                whitelist.add(property);
+            }
+        }
+        return whitelist;
+    }
+
+    /**
+     * Returns the current value of every whitelisted property that is set.
+     */
+    public static Map<String, String> capture(PreferenceKeyIndex keyIndex) {
+        Map<String, String> state = new ArrayMap<>();
+        for (String property : getWhitelist(keyIndex)) {
+            String value = SystemProperties.get(property);
+            if (!value.isEmpty()) {
+                state.put(property, value);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Sets the whitelisted properties of {@code state} that differ from the current value.
+     *
+     * @param journal receives the previous value of every property before it is set,
+     *         may be null
+     * @return the number of properties written
+     */
+    public static int apply(PreferenceKeyIndex keyIndex, Map<String, String> state,
+            RestoreJournal journal) throws IOException {
+        Set<String> whitelist = getWhitelist(keyIndex);
+        Map<String, String> changes = new ArrayMap<>();
+        for (Map.Entry<String, String> entry : state.entrySet()) {
+            String property = entry.getKey();
+            if (!whitelist.contains(property)) {
+                Log.w(TAG, "Ignoring property outside the whitelist: " + property);
+                continue;
+            }
+            String current = SystemProperties.get(property);
+            if (entry.getValue().equals(current)) {
+                continue;
+            }
+            changes.put(property, entry.getValue());
+            if (journal != null) {
+                journal.record(SECTION, property, current);
+            }
+        }
+        if (journal != null && !changes.isEmpty()) {
+            journal.sync();
+        }
+        int changed = 0;
+        for (Map.Entry<String, String> entry : changes.entrySet()) {
+            String property = entry.getKey();
+            try {
+                SystemProperties.set(property, entry.getValue());
+                changed++;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error restoring property " + property, e);
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemProperties;
+import android.provider.Settings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Dry run of a restore: what a backup would add, change or leave alone.
+ *
+ * The backup is streamed once and compared against a single snapshot query per
+ * namespace, the current overlay state and the current property values. Nothing is
+ * written.
+ */
+public class RestoreDiff {
+
+    public static final int ADDED = 0;
+    public static final int CHANGED = 1;
+    public static final int UNCHANGED = 2;
+
+    /**
+     * One key of the backup compared with the device.
+     */
+    public static class Entry {
+        public final String name;
+        public final int status;
+        /** Value on the device, null if the key is unset. */
+        public final String current;
+        public final String backup;
+
+        Entry(String name, int status, String current, String backup) {
+            this.name = name;
+            this.status = status;
+            this.current = current;
+            this.backup = backup;
+        }
+    }
+
+    /**
+     * The entries of one backup section, changed keys first.
+     */
+    public static class Section {
+        public final String name;
+        public final List<Entry> entries = new ArrayList<>();
+        private final int[] mCounts = new int[3];
+
+        Section(String name) {
+            this.name = name;
+        }
+
+        public int getCount(int status) {
+            return mCounts[status];
+        }
+
+        void add(Entry entry) {
+            entries.add(entry);
+            mCounts[entry.status]++;
+        }
+
+        void sort() {
+            Collections.sort(entries, (a, b) -> a.status != b.status
+                    ? Integer.compare(ORDER[a.status], ORDER[b.status])
+                    : a.name.compareTo(b.name));
+        }
+    }
+
+    // Changed keys are the most interesting, unchanged ones the least
+    private static final int[] ORDER = { 1, 0, 2 };
+
+    private final Map<String, Section> mSections = new LinkedHashMap<>();
+    private final int[] mCounts = new int[3];
+
+    private RestoreDiff() {}
+
+    public List<Section> getSections() {
+        return new ArrayList<>(mSections.values());
+    }
+
+    public int getCount(int status) {
+        return mCounts[status];
+    }
+
+    /**
+     * Compares the backup at {@code uri} with the current state of the device.
+     */
+    public static RestoreDiff compute(Context context, Uri uri) throws IOException {
+        Context appContext = context.getApplicationContext();
+        ContentResolver resolver = appContext.getContentResolver();
+        RestoreDiff diff = new RestoreDiff();
+        Map<SettingsNamespace, Map<String, String>> snapshots = new LinkedHashMap<>();
+        AtomicReference<Map<String, String>> overlays = new AtomicReference<>();
+        Set<String> properties = PropertyState.getWhitelist(PreferenceKeyIndex.getInstance(appContext));
+        try (ContentProviderClient client = resolver.acquireContentProviderClient(Settings.AUTHORITY);
+                InputStream inputStream = resolver.openInputStream(uri)) {
+            if (client == null) {
+                throw new IOException("Settings provider unavailable");
+            }
+            if (inputStream == null) {
+                throw new IOException("Unable to open " + uri);
+            }
+            BackupFormat.read(inputStream, (section, name, value) -> {
+                if (value == null) {
+                    return;
+                }
+                String current;
+                SettingsNamespace namespace = SettingsNamespace.fromSection(section);
+                if (namespace != null) {
+                    Map<String, String> snapshot = snapshots.get(namespace);
+                    if (snapshot == null) {
+                        snapshot = SettingsRestorer.querySnapshot(client, namespace);
+                        snapshots.put(namespace, snapshot);
+                    }
+                    current = snapshot.get(name);
+                } else if (OverlayState.SECTION.equals(section)) {
+                    if (overlays.get() == null) {
+                        overlays.set(OverlayState.capture(appContext));
+                    }
+                    if (!overlays.get().containsKey(name)) {
+                        // Category not installed on this device, the restore ignores it
+                        return;
+                    }
+                    current = overlays.get().get(name);
+                } else if (PropertyState.SECTION.equals(section)) {
+                    if (!properties.contains(name)) {
+                        return;
+                    }
+                    current = SystemProperties.get(name);
+                    if (current.isEmpty()) {
+                        current = null;
+                    }
+                } else {
+                    return;
+                }
+                diff.add(section, new Entry(name, current == null ? ADDED
+                        : current.equals(value) ? UNCHANGED : CHANGED, current, value));
+            });
+        }
+        for (Section section : diff.mSections.values()) {
+            section.sort();
+        }
+        return diff;
+    }
+
+    private void add(String sectionName, Entry entry) {
+        Section section = mSections.get(sectionName);
+        if (section == null) {
+            section = new Section(sectionName);
+            mSections.put(sectionName, section);
+        }
+        section.add(entry);
+        mCounts[entry.status]++;
+    }
+}
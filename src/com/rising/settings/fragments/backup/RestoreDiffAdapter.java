@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.android.settings.R;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists a {@link RestoreDiff} as one header per section followed by its keys.
+ *
+ * The rows are flattened once up front, so binding a row is an index lookup and
+ * long diffs scroll without per-row work beyond setting text.
+ */
+public class RestoreDiffAdapter extends RecyclerView.Adapter<RestoreDiffAdapter.ViewHolder> {
+
+    private static final int TYPE_HEADER = 0;
+    private static final int TYPE_ENTRY = 1;
+
+    private final List<Object> mRows = new ArrayList<>();
+    private final String[] mStatusLabels;
+
+    public RestoreDiffAdapter(Context context, RestoreDiff diff) {
+        mStatusLabels = new String[] {
+                context.getString(R.string.restore_preview_added),
+                context.getString(R.string.restore_preview_changed),
+                context.getString(R.string.restore_preview_unchanged)
+        };
+        for (RestoreDiff.Section section : diff.getSections()) {
+            mRows.add(section);
+            mRows.addAll(section.entries);
+        }
+        setHasStableIds(true);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        // The rows never change once built
+        return position;
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return mRows.get(position) instanceof RestoreDiff.Section ? TYPE_HEADER : TYPE_ENTRY;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        int layout = viewType == TYPE_HEADER
+                ? R.layout.restore_diff_header : R.layout.restore_diff_item;
+        return new ViewHolder(LayoutInflater.from(parent.getContext())
+                .inflate(layout, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        Context context = holder.itemView.getContext();
+        Object row = mRows.get(position);
+        if (row instanceof RestoreDiff.Section) {
+            RestoreDiff.Section section = (RestoreDiff.Section) row;
+            holder.title.setText(section.name);
+            holder.summary.setText(context.getString(R.string.restore_preview_counts,
+                    section.getCount(RestoreDiff.ADDED),
+                    section.getCount(RestoreDiff.CHANGED),
+                    section.getCount(RestoreDiff.UNCHANGED)));
+            return;
+        }
+        RestoreDiff.Entry entry = (RestoreDiff.Entry) row;
+        holder.title.setText(entry.name);
+        holder.status.setText(mStatusLabels[entry.status]);
+        if (entry.status == RestoreDiff.CHANGED) {
+            holder.summary.setText(context.getString(R.string.restore_preview_value_change,
+                    entry.current, entry.backup));
+        } else {
+            holder.summary.setText(entry.backup);
+        }
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView title;
+        final TextView summary;
+        final TextView status;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            title = itemView.findViewById(R.id.title);
+            summary = itemView.findViewById(R.id.summary);
+            status = itemView.findViewById(R.id.status);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.RemoteException;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.rising.settings.utils.BinaryCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Undo journal of a restore.
+ *
+ * Before a restore writes a key, the value it is about to replace is appended to the
+ * journal, and the journal is synced to disk before the write is sent. Only keys
+ * whose value actually changes are recorded. If the restore fails or is cancelled
+ * the journal is replayed to roll the device back; if it succeeds the journal is
+ * kept as the undo record of the last restore.
+ *
+ * Layout: the 4 byte magic "RSJL" and a version byte, followed by uncompressed
+ * records of section, name and prior value encoded with {@link BinaryCodec}.
+ * A record cut short by a crash ends the journal.
+ */
+public class RestoreJournal implements Closeable {
+
+    private static final String TAG = "RestoreJournal";
+    private static final String DIR_NAME = "restore_journal";
+    private static final String ACTIVE_FILE = "active.jnl";
+    private static final String UNDO_FILE = "last_restore.jnl";
+    private static final byte[] MAGIC = { 'R', 'S', 'J', 'L' };
+    private static final int VERSION = 1;
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    // Held by a restore from its first write until it committed or rolled back, and
+    // by undo and recovery, so only one of them touches the journal at a time
+    static final Object sLock = new Object();
+    // Whether this process already looked for an interrupted restore
+    private static boolean sRecoveryDone;
+
+    private final File mFile;
+    private final File mUndoFile;
+    private final FileOutputStream mFileOut;
+    private final DataOutputStream mOut;
+    private int mCount;
+
+    private RestoreJournal(Context context) throws IOException {
+        File dir = getDir(context);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        mFile = new File(dir, ACTIVE_FILE);
+        mUndoFile = new File(dir, UNDO_FILE);
+        mFileOut = new FileOutputStream(mFile);
+        mOut = new DataOutputStream(new BufferedOutputStream(mFileOut));
+        mOut.write(MAGIC);
+        mOut.writeByte(VERSION);
+    }
+
+    /**
+     * Starts the journal of a new restore. Call with {@link #sLock} held.
+     *
+     * An active journal that still holds records belongs to a restore whose rollback
+     * failed. It is replayed before the file is reused, and the new restore is
+     * refused if that replay fails again.
+     */
+    public static RestoreJournal begin(Context context) throws IOException {
+        File active = new File(getDir(context), ACTIVE_FILE);
+        if (active.length() > MAGIC.length + 1) {
+            int count = replay(context, active);
+            active.delete();
+            Log.w(TAG, "Rolled back " + count + " entries left by an earlier restore");
+        }
+        return new RestoreJournal(context);
+    }
+
+    /**
+     * Appends the value a key held before the restore touched it.
+     *
+     * @param prior the previous value, or null if the key was unset
+     */
+    public void record(String section, String name, String prior) throws IOException {
+        BinaryCodec.writeString(mOut, section);
+        BinaryCodec.writeString(mOut, name);
+        BinaryCodec.writeNullableString(mOut, prior);
+        mCount++;
+    }
+
+    /**
+     * Makes every recorded entry durable. Call before sending the writes it covers.
+     */
+    public void sync() throws IOException {
+        mOut.flush();
+        mFileOut.getFD().sync();
+    }
+
+    /**
+     * Number of entries recorded so far.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Marks the restore as complete and keeps the journal as the undo record.
+     */
+    public void commit() throws IOException {
+        close();
+        if (!mFile.renameTo(mUndoFile)) {
+            throw new IOException("Unable to keep undo journal");
+        }
+    }
+
+    /**
+     * Rolls back every recorded entry and discards the journal.
+     *
+     * @return the number of entries restored to their prior value
+     */
+    public int rollback(Context context) throws IOException {
+        close();
+        int count = replay(context, mFile);
+        mFile.delete();
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    /**
+     * Whether a completed restore can be undone.
+     */
+    public static boolean hasUndo(Context context) {
+        return new File(getDir(context), UNDO_FILE).isFile();
+    }
+
+    /**
+     * Reverts the last completed restore and discards its journal.
+     *
+     * @return the number of entries restored to their prior value
+     */
+    public static int undoLastRestore(Context context) throws IOException {
+        synchronized (sLock) {
+            File file = new File(getDir(context), UNDO_FILE);
+            int count = replay(context, file);
+            file.delete();
+            return count;
+        }
+    }
+
+    /**
+     * Rolls back a restore that was interrupted before it could commit or roll back,
+     * e.g. because the process died. Only the first call in a process looks for one;
+     * an active journal found later belongs to a restore of this process, which
+     * rolls back by itself. Waits for a running restore to finish.
+     *
+     * @return the number of entries restored, or -1 if there was nothing to recover
+     */
+    public static int recoverInterrupted(Context context) throws IOException {
+        synchronized (sLock) {
+            if (sRecoveryDone) {
+                return -1;
+            }
+            // A failed replay keeps the journal for the next process
+            sRecoveryDone = true;
+            File file = new File(getDir(context), ACTIVE_FILE);
+            if (!file.isFile()) {
+                return -1;
+            }
+            int count = replay(context, file);
+            file.delete();
+            return count;
+        }
+    }
+
+    private static File getDir(Context context) {
+        return new File(context.getFilesDir(), DIR_NAME);
+    }
+
+    /**
+     * Writes every recorded prior value back.
+     */
+    private static int replay(Context context, File file) throws IOException {
+        Context appContext = context.getApplicationContext();
+        ContentResolver resolver = appContext.getContentResolver();
+        Map<String, String> overlays = new ArrayMap<>();
+        Map<String, String> properties = new ArrayMap<>();
+        int[] count = new int[1];
+        try (ContentProviderClient client = resolver.acquireContentProviderClient(Settings.AUTHORITY)) {
+            if (client == null) {
+                throw new IOException("Settings provider unavailable");
+            }
+            read(file, (section, name, prior) -> {
+                SettingsNamespace namespace = SettingsNamespace.fromSection(section);
+                if (namespace != null) {
+                    if (revert(client, namespace, name, prior)) {
+                        count[0]++;
+                    }
+                } else if (OverlayState.SECTION.equals(section)) {
+                    overlays.put(name, prior != null ? prior : "");
+                } else if (PropertyState.SECTION.equals(section)) {
+                    properties.put(name, prior != null ? prior : "");
+                }
+            });
+        }
+        count[0] += PropertyState.apply(PreferenceKeyIndex.getInstance(appContext), properties, null);
+        count[0] += OverlayState.apply(appContext, overlays, null);
+        Log.d(TAG, "Rolled back " + count[0] + " entries from " + file.getName());
+        return count[0];
+    }
+
+    private static boolean revert(ContentProviderClient client, SettingsNamespace namespace,
+            String name, String prior) {
+        try {
+            if (prior == null) {
+                client.delete(namespace.getUri(), "name=?", new String[] { name });
+            } else {
+                ContentValues values = new ContentValues(2);
+                values.put("name", name);
+                values.put("value", prior);
+                client.insert(namespace.getUri(), values);
+            }
+            return true;
+        } catch (RemoteException | RuntimeException e) {
+            Log.e(TAG, "Error rolling back " + namespace.getSection() + " setting " + name, e);
+            return false;
+        }
+    }
+
+    private static void read(File file, SettingsVisitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            for (byte expected : MAGIC) {
+                if (in.readByte() != expected) {
+                    throw new IOException("Not a restore journal");
+                }
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported journal version " + version);
+            }
+            BinaryCodec.Decoder decoder = new BinaryCodec.Decoder(in, MAX_STRING_LENGTH);
+            while (true) {
+                String section;
+                String name;
+                String prior;
+                try {
+                    section = decoder.readString();
+                    name = decoder.readString();
+                    prior = decoder.readNullableString();
+                } catch (EOFException e) {
+                    // End of the journal, or a record cut short before it was synced
+                    return;
+                }
+                visitor.onSetting(section, name, prior);
+            }
+        }
+    }
+}
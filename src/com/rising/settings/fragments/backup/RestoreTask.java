@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.OpenableColumns;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Restores a backup document off the main thread.
+ *
+ * All writes go through a single settings provider client in per-namespace batches;
+ * see {@link SettingsRestorer} for why change notifications stay per row. Overlay
+ * entries are collected while reading and applied in a single overlay manager
+ * transaction at the end, after the whitelisted system properties. Every replaced value is recorded in a
+ * {@link RestoreJournal} first, so a failed or cancelled restore is rolled back and a
+ * completed one can be undone. Callbacks are delivered on the main thread.
+ */
+public class RestoreTask implements Runnable {
+
+    private static final String TAG = "RestoreTask";
+
+    public interface Callback {
+        /**
+         * Progress in percent, or -1 when the size of the backup is unknown.
+         */
+        void onProgress(int percent);
+
+        void onFinished(Result result);
+
+        void onFailed(Exception e);
+
+        void onCancelled();
+    }
+
+    /**
+     * Outcome of a completed restore.
+     */
+    public static class Result {
+        public final int written;
+        public final int skipped;
+        public final int failed;
+
+        Result(int written, int skipped, int failed) {
+            this.written = written;
+            this.skipped = skipped;
+            this.failed = failed;
+        }
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final boolean mDifferential;
+    // Replaced when the screen that started the restore is recreated
+    private volatile Callback mCallback;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mCancelled = new AtomicBoolean();
+
+    private Future<?> mFuture;
+    private int mLastProgress = Integer.MIN_VALUE;
+
+    public RestoreTask(Context context, Uri uri, boolean differential, Callback callback) {
+        mContext = context.getApplicationContext();
+        mResolver = mContext.getContentResolver();
+        mUri = uri;
+        mDifferential = differential;
+        mCallback = callback;
+    }
+
+    /**
+     * Delivers the remaining callbacks to {@code callback}. Call on the main thread.
+     */
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    public RestoreTask start(ExecutorService executor) {
+        mFuture = executor.submit(this);
+        return this;
+    }
+
+    /**
+     * Stops the restore before the next entry and rolls back the writes already sent.
+     */
+    public void cancel() {
+        mCancelled.set(true);
+        if (mFuture != null) {
+            mFuture.cancel(true);
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled.get();
+    }
+
+    @Override
+    public void run() {
+        synchronized (RestoreJournal.sLock) {
+            restore();
+        }
+    }
+
+    private void restore() {
+        long size = querySize();
+        postProgress(size > 0 ? 0 : -1);
+        RestoreJournal journal = null;
+        try (ContentProviderClient client =
+                mResolver.acquireContentProviderClient(Settings.AUTHORITY)) {
+            if (client == null) {
+                throw new IOException("Settings provider unavailable");
+            }
+            journal = RestoreJournal.begin(mContext);
+            SettingsRestorer restorer = new SettingsRestorer(client, mDifferential);
+            restorer.setJournal(journal);
+            Map<String, String> overlays = new ArrayMap<>();
+            Map<String, String> properties = new ArrayMap<>();
+            try (InputStream inputStream = mResolver.openInputStream(mUri)) {
+                if (inputStream == null) {
+                    throw new IOException("Unable to open " + mUri);
+                }
+                CountingInputStream counting = new CountingInputStream(inputStream);
+                BackupFormat.read(counting, (section, name, value) -> {
+                    checkCancelled();
+                    if (OverlayState.SECTION.equals(section)) {
+                        if (value != null) {
+                            overlays.put(name, value);
+                        }
+                    } else if (PropertyState.SECTION.equals(section)) {
+                        if (value != null) {
+                            properties.put(name, value);
+                        }
+                    } else {
+                        restorer.onSetting(section, name, value);
+                    }
+                    if (size > 0) {
+                        postProgress((int) Math.min(100, counting.getCount() * 100 / size));
+                    }
+                });
+            }
+            checkCancelled();
+            restorer.flush();
+            checkCancelled();
+            int propertiesWritten = PropertyState.apply(
+                    PreferenceKeyIndex.getInstance(mContext), properties, journal);
+            int overlaysChanged = OverlayState.apply(mContext, overlays, journal);
+            journal.commit();
+            Log.d(TAG, "Restore wrote " + restorer.getWrittenCount() + " keys, skipped "
+                    + restorer.getSkippedCount() + " unchanged, "
+                    + restorer.getFailedCount() + " failed; " + propertiesWritten
+                    + " properties, " + overlaysChanged + " overlays changed; journaled "
+                    + journal.getCount() + " prior values");
+            Result result = new Result(
+                    restorer.getWrittenCount() + propertiesWritten + overlaysChanged,
+                    restorer.getSkippedCount(), restorer.getFailedCount());
+            mHandler.post(() -> mCallback.onFinished(result));
+        } catch (CancellationException e) {
+            Log.d(TAG, "Restore cancelled");
+            rollback(journal);
+            mHandler.post(() -> mCallback.onCancelled());
+        } catch (IOException | RuntimeException e) {
+            rollback(journal);
+            if (isCancelled()) {
+                mHandler.post(() -> mCallback.onCancelled());
+                return;
+            }
+            Log.e(TAG, "Restore failed", e);
+            mHandler.post(() -> mCallback.onFailed(e));
+        }
+    }
+
+    /**
+     * Puts back every value the restore replaced, so a failed or cancelled restore
+     * does not leave the device half restored.
+     */
+    private void rollback(RestoreJournal journal) {
+        if (journal == null) {
+            return;
+        }
+        // The rollback must run to completion even if the task was interrupted
+        Thread.interrupted();
+        try {
+            int count = journal.rollback(mContext);
+            Log.d(TAG, "Rolled back " + count + " entries");
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Rollback failed, the journal is kept for the next attempt", e);
+        }
+    }
+
+    private void checkCancelled() {
+        if (mCancelled.get() || Thread.currentThread().isInterrupted()) {
+            throw new CancellationException();
+        }
+    }
+
+    private void postProgress(int percent) {
+        if (percent == mLastProgress) {
+            return;
+        }
+        mLastProgress = percent;
+        mHandler.post(() -> mCallback.onProgress(percent));
+    }
+
+    private long querySize() {
+        if (ContentResolver.SCHEME_FILE.equals(mUri.getScheme())) {
+            return new File(mUri.getPath()).length();
+        }
+        try (Cursor cursor = mResolver.query(mUri,
+                new String[] { OpenableColumns.SIZE }, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to query backup size", e);
+        }
+        return -1;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import com.rising.settings.utils.BinaryCodec;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streams the entries of a binary backup written by {@link SettingsBinaryWriter}
+ * to a {@link SettingsVisitor}.
+ */
+public class SettingsBinaryReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // Upper bound for a single name or value, far above anything the provider stores
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    private final InputStream mRawIn;
+    private DataInputStream mIn;
+    private BinaryCodec.Decoder mDecoder;
+
+    public SettingsBinaryReader(InputStream in) {
+        mRawIn = in;
+    }
+
+    /**
+     * Reads the whole document, handing every entry to the visitor.
+     *
+     * @return the number of entries visited
+     */
+    public int read(SettingsVisitor visitor) throws IOException {
+        readHeader();
+        int count = 0;
+        String section = null;
+        while (true) {
+            int tag = mIn.readUnsignedByte();
+            switch (tag) {
+                case SettingsBinaryWriter.TAG_END:
+                    return count;
+                case SettingsBinaryWriter.TAG_SECTION:
+                    section = mDecoder.readString();
+                    break;
+                case SettingsBinaryWriter.TAG_ENTRY:
+                    if (section == null) {
+                        throw new IOException("Entry outside of a section");
+                    }
+                    String name = mDecoder.readString();
+                    String value = mDecoder.readNullableString();
+                    visitor.onSetting(section, name, value);
+                    count++;
+                    break;
+                default:
+                    throw new IOException("Unknown record tag " + tag);
+            }
+        }
+    }
+
+    private void readHeader() throws IOException {
+        for (byte expected : SettingsBinaryWriter.MAGIC) {
+            if (mRawIn.read() != expected) {
+                throw new IOException("Not a binary settings backup");
+            }
+        }
+        int version = mRawIn.read();
+        if (version != SettingsBinaryWriter.VERSION) {
+            throw new IOException("Unsupported backup version " + version);
+        }
+        mIn = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(mRawIn), BUFFER_SIZE));
+        mDecoder = new BinaryCodec.Decoder(mIn, MAX_STRING_LENGTH);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mIn != null) {
+            mIn.close();
+        } else {
+            mRawIn.close();
+        }
+    }
+}
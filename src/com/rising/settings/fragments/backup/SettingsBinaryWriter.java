@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import com.rising.settings.utils.BinaryCodec;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes the compact binary backup format.
+ *
+ * Layout: the 4 byte magic "RSBK" and a version byte, followed by a deflate
+ * compressed stream of records. Each record starts with a tag byte:
+ * {@link #TAG_SECTION} followed by the section name, {@link #TAG_ENTRY} followed by
+ * a name and a value belonging to the last section, and {@link #TAG_END} closing the
+ * document. Strings are a varint byte length followed by UTF-8 bytes; values store
+ * length + 1 so that 0 can mark a null value.
+ */
+public class SettingsBinaryWriter implements SettingsWriter {
+
+    static final byte[] MAGIC = { 'R', 'S', 'B', 'K' };
+    static final int VERSION = 1;
+
+    static final int TAG_END = 0;
+    static final int TAG_SECTION = 1;
+    static final int TAG_ENTRY = 2;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final DataOutputStream mOut;
+    private boolean mInSection;
+
+    public SettingsBinaryWriter(OutputStream... outputs) throws IOException {
+        OutputStream out = TeeOutputStream.of(outputs);
+        out.write(MAGIC);
+        out.write(VERSION);
+        mOut = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(out), BUFFER_SIZE));
+    }
+
+    @Override
+    public void beginSection(String section) throws IOException {
+        mOut.writeByte(TAG_SECTION);
+        BinaryCodec.writeString(mOut, section);
+        mInSection = true;
+    }
+
+    @Override
+    public void write(String name, String value) throws IOException {
+        if (!mInSection) {
+            throw new IllegalStateException("No section open");
+        }
+        mOut.writeByte(TAG_ENTRY);
+        BinaryCodec.writeString(mOut, name);
+        BinaryCodec.writeNullableString(mOut, value);
+    }
+
+    @Override
+    public void endSection() throws IOException {
+        if (!mInSection) {
+            throw new IllegalStateException("No section open");
+        }
+        mInSection = false;
+    }
+
+    /**
+     * Finishes the document and closes every output.
+     */
+    @Override
+    public void close() throws IOException {
+        mOut.writeByte(TAG_END);
+        mOut.close();
+    }
+}
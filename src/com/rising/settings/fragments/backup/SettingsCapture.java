@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copies the settings provider tables, theme overlay state and whitelisted system
+ * properties into a {@link SettingsWriter}.
+ */
+public final class SettingsCapture {
+
+    private static final String TAG = "SettingsCapture";
+
+    private static final String[] PROJECTION = { "name", "value" };
+
+    // Rows a namespace that is read ahead may buffer. A larger namespace is queried
+    // again and streamed once the writer gets to it.
+    private static final int MAX_BUFFERED_ROWS = 4096;
+    private static final Rows TOO_MANY_ROWS = new Rows();
+
+    private SettingsCapture() {}
+
+    /**
+     * Writes every namespace, followed by the overlay and property sections.
+     *
+     * The first namespace is streamed from its cursor to the writer while the other
+     * namespaces, the overlays and the properties are read on a pool that lives for
+     * this call. Read ahead namespaces buffer at most {@link #MAX_BUFFERED_ROWS}
+     * rows. Sections are written in a fixed order so the output does not depend on
+     * which read finishes first.
+     *
+     * @param keyIndex limits the settings to personalization keys when not null
+     */
+    public static void write(Context context, SettingsWriter writer,
+            PreferenceKeyIndex keyIndex) throws IOException {
+        Context appContext = context.getApplicationContext();
+        ContentResolver resolver = appContext.getContentResolver();
+        PreferenceKeyIndex propertyIndex = keyIndex != null
+                ? keyIndex : PreferenceKeyIndex.getInstance(appContext);
+
+        SettingsNamespace[] namespaces = SettingsNamespace.values();
+        // One thread per read ahead namespace; overlay and property capture queue
+        // behind them
+        ExecutorService executor = Executors.newFixedThreadPool(namespaces.length - 1);
+        try {
+            List<Future<Rows>> readAhead = new ArrayList<>(namespaces.length - 1);
+            for (int i = 1; i < namespaces.length; i++) {
+                SettingsNamespace namespace = namespaces[i];
+                Set<String> scope = getScope(keyIndex, namespace);
+                readAhead.add(executor.submit(() -> readNamespace(resolver, namespace, scope)));
+            }
+            Future<Map<String, String>> overlays =
+                    executor.submit(() -> OverlayState.capture(appContext));
+            Future<Map<String, String>> properties =
+                    executor.submit(() -> PropertyState.capture(propertyIndex));
+
+            streamNamespace(resolver, writer, namespaces[0], getScope(keyIndex, namespaces[0]));
+            for (int i = 1; i < namespaces.length; i++) {
+                Rows rows = await(readAhead.get(i - 1));
+                if (rows == TOO_MANY_ROWS) {
+                    Log.d(TAG, namespaces[i].getSection() + " exceeds the read ahead buffer");
+                    streamNamespace(resolver, writer, namespaces[i],
+                            getScope(keyIndex, namespaces[i]));
+                } else if (rows != null) {
+                    writeRows(writer, namespaces[i], rows);
+                }
+            }
+            writeSection(writer, OverlayState.SECTION, await(overlays));
+            writeSection(writer, PropertyState.SECTION, await(properties));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Set<String> getScope(PreferenceKeyIndex keyIndex, SettingsNamespace namespace) {
+        return keyIndex != null ? keyIndex.getKeys(namespace) : null;
+    }
+
+    /**
+     * Writes the rows of a namespace as they come off the cursor.
+     */
+    private static void streamNamespace(ContentResolver resolver, SettingsWriter writer,
+            SettingsNamespace namespace, Set<String> scope) throws IOException {
+        writer.beginSection(namespace.getSection());
+        queryRows(resolver, namespace, scope, (name, value) -> {
+            writer.write(name, value);
+            return true;
+        });
+        writer.endSection();
+    }
+
+    /**
+     * Buffers the rows of a namespace.
+     *
+     * @return the buffered rows, {@link #TOO_MANY_ROWS} if there are more than
+     *         {@link #MAX_BUFFERED_ROWS}, or null if the provider could not be queried
+     */
+    private static Rows readNamespace(ContentResolver resolver, SettingsNamespace namespace,
+            Set<String> scope) throws IOException {
+        Rows rows = new Rows();
+        boolean queried = queryRows(resolver, namespace, scope, (name, value) -> {
+            if (rows.names.size() == MAX_BUFFERED_ROWS) {
+                rows.overflowed = true;
+                return false;
+            }
+            rows.names.add(name);
+            rows.values.add(value);
+            return true;
+        });
+        if (!queried) {
+            return null;
+        }
+        return rows.overflowed ? TOO_MANY_ROWS : rows;
+    }
+
+    /**
+     * Hands the rows of a namespace to {@code handler} until it returns false,
+     * limited to {@code scope} when it is not null.
+     *
+     * @return false if the provider could not be queried
+     */
+    private static boolean queryRows(ContentResolver resolver, SettingsNamespace namespace,
+            Set<String> scope, RowHandler handler) throws IOException {
+        String section = namespace.getSection();
+        long start = SystemClock.elapsedRealtime();
+        int count = 0;
+        Trace.beginSection("SettingsCapture:" + section);
+        // The settings provider only supports single key selections, so a scoped
+        // backup filters the rows here instead.
+        try (Cursor cursor = resolver.query(namespace.getUri(), PROJECTION, null, null, null)) {
+            if (cursor == null) {
+                Log.e(TAG, "Unable to query " + section + " settings");
+                return false;
+            }
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                String value = cursor.getString(1);
+                if (name != null && value != null && (scope == null || scope.contains(name))) {
+                    if (!handler.onRow(name, value)) {
+                        break;
+                    }
+                    count++;
+                }
+            }
+            Log.d(TAG, "Captured " + count + " " + section + " settings in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error backing up " + section + " settings", e);
+            return false;
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private static void writeRows(SettingsWriter writer, SettingsNamespace namespace, Rows rows)
+            throws IOException {
+        writer.beginSection(namespace.getSection());
+        for (int i = 0; i < rows.names.size(); i++) {
+            writer.write(rows.names.get(i), rows.values.get(i));
+        }
+        writer.endSection();
+    }
+
+    private static void writeSection(SettingsWriter writer, String section,
+            Map<String, String> entries) throws IOException {
+        if (entries == null || entries.isEmpty()) {
+            return;
+        }
+        writer.beginSection(section);
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            writer.write(entry.getKey(), entry.getValue());
+        }
+        writer.endSection();
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error capturing backup section", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrupted");
+        }
+    }
+
+    private interface RowHandler {
+        /** @return whether to keep reading */
+        boolean onRow(String name, String value) throws IOException;
+    }
+
+    private static class Rows {
+        final ArrayList<String> names = new ArrayList<>();
+        final ArrayList<String> values = new ArrayList<>();
+        boolean overflowed;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams the entries of a JSON backup to a {@link SettingsVisitor} without
+ * holding the document in memory.
+ */
+public class SettingsJsonReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final JsonReader mReader;
+
+    public SettingsJsonReader(InputStream in) {
+        mReader = new JsonReader(new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE));
+    }
+
+    /**
+     * Reads the whole document, handing every entry to the visitor.
+     * Sections and values the backup format does not define are skipped.
+     *
+     * @return the number of entries visited
+     */
+    public int read(SettingsVisitor visitor) throws IOException {
+        int count = 0;
+        mReader.beginObject();
+        while (mReader.hasNext()) {
+            String section = mReader.nextName();
+            if (mReader.peek() != JsonToken.BEGIN_OBJECT) {
+                mReader.skipValue();
+                continue;
+            }
+            mReader.beginObject();
+            while (mReader.hasNext()) {
+                String name = mReader.nextName();
+                String value = nextValue();
+                if (value != null) {
+                    visitor.onSetting(section, name, value);
+                    count++;
+                }
+            }
+            mReader.endObject();
+        }
+        mReader.endObject();
+        return count;
+    }
+
+    private String nextValue() throws IOException {
+        switch (mReader.peek()) {
+            case STRING:
+            case NUMBER:
+                return mReader.nextString();
+            case BOOLEAN:
+                return String.valueOf(mReader.nextBoolean());
+            default:
+                mReader.skipValue();
+                return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.util.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams settings rows into the JSON backup layout
+ * ({"System": {name: value, ...}, "Secure": {...}, "Global": {...}}).
+ *
+ * Rows are encoded as they are written and the encoded bytes are copied to every
+ * output at once, so memory use does not grow with the number of settings.
+ */
+public class SettingsJsonWriter implements SettingsWriter {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final JsonWriter mWriter;
+    private boolean mInSection;
+
+    public SettingsJsonWriter(OutputStream... outputs) throws IOException {
+        OutputStream out = TeeOutputStream.of(outputs);
+        mWriter = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE));
+        mWriter.beginObject();
+    }
+
+    @Override
+    public void beginSection(String section) throws IOException {
+        if (mInSection) {
+            endSection();
+        }
+        mWriter.name(section).beginObject();
+        mInSection = true;
+    }
+
+    @Override
+    public void write(String name, String value) throws IOException {
+        if (!mInSection) {
+            throw new IllegalStateException("No section open");
+        }
+        mWriter.name(name).value(value);
+    }
+
+    @Override
+    public void endSection() throws IOException {
+        if (!mInSection) {
+            throw new IllegalStateException("No section open");
+        }
+        mWriter.endObject();
+        mInSection = false;
+    }
+
+    /**
+     * Finishes the document and closes every output.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mInSection) {
+            endSection();
+        }
+        mWriter.endObject();
+        mWriter.close();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.provider.Settings;
+
+/**
+ * The settings provider tables covered by a personalization backup.
+ */
+public enum SettingsNamespace {
+    SYSTEM("System", Settings.System.CONTENT_URI),
+    SECURE("Secure", Settings.Secure.CONTENT_URI),
+    GLOBAL("Global", Settings.Global.CONTENT_URI);
+
+    private final String mSection;
+    private final Uri mUri;
+
+    SettingsNamespace(String section, Uri uri) {
+        mSection = section;
+        mUri = uri;
+    }
+
+    /**
+     * Name of the section holding this namespace in a backup file.
+     */
+    public String getSection() {
+        return mSection;
+    }
+
+    public Uri getUri() {
+        return mUri;
+    }
+
+    public String getString(ContentResolver resolver, String name) {
+        switch (this) {
+            case SYSTEM:
+                return Settings.System.getString(resolver, name);
+            case SECURE:
+                return Settings.Secure.getString(resolver, name);
+            default:
+                return Settings.Global.getString(resolver, name);
+        }
+    }
+
+    public boolean putString(ContentResolver resolver, String name, String value) {
+        switch (this) {
+            case SYSTEM:
+                return Settings.System.putString(resolver, name, value);
+            case SECURE:
+                return Settings.Secure.putString(resolver, name, value);
+            default:
+                return Settings.Global.putString(resolver, name, value);
+        }
+    }
+
+    /**
+     * Returns the namespace stored under the given backup section, or null if unknown.
+     */
+    public static SettingsNamespace fromSection(String section) {
+        for (SettingsNamespace namespace : values()) {
+            if (namespace.mSection.equals(section)) {
+                return namespace;
+            }
+        }
+        return null;
+    }
+}
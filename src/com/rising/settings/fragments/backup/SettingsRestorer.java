@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies backup entries to the settings provider.
+ *
+ * Writes are queued per namespace and sent through one {@link ContentProviderClient}
+ * in batches, so a large restore costs a handful of binder calls instead of one per key.
+ * Observer notifications cannot be coalesced from here: the settings provider sends
+ * one for the URI of every row it writes, batched or not, and has no call that
+ * writes several rows or suppresses them. A restore therefore keeps the number of
+ * notifications down by writing fewer rows, see differential mode.
+ *
+ * In differential mode every namespace is snapshotted with a single query the first
+ * time it is touched, and entries whose value already matches are not written. This
+ * avoids a provider call and a round of ContentObserver callbacks per unchanged key.
+ *
+ * With a {@link RestoreJournal} attached, the prior value of every key in a batch is
+ * recorded and synced to the journal before the batch is sent.
+ */
+public class SettingsRestorer implements SettingsVisitor {
+
+    private static final String TAG = "SettingsRestorer";
+    private static final String[] PROJECTION = { "name", "value" };
+    private static final int BATCH_SIZE = 200;
+
+    private final ContentProviderClient mClient;
+    private final boolean mDifferential;
+    private final Map<SettingsNamespace, Map<String, String>> mSnapshots =
+            new EnumMap<>(SettingsNamespace.class);
+    private final Map<SettingsNamespace, ArrayList<ContentValues>> mPending =
+            new EnumMap<>(SettingsNamespace.class);
+    private final Map<SettingsNamespace, Set<String>> mJournaled =
+            new EnumMap<>(SettingsNamespace.class);
+
+    private RestoreJournal mJournal;
+
+    private int mWritten;
+    private int mSkipped;
+    private int mFailed;
+
+    public SettingsRestorer(ContentProviderClient client, boolean differential) {
+        mClient = client;
+        mDifferential = differential;
+    }
+
+    /**
+     * Records prior values to {@code journal} before every write.
+     */
+    public void setJournal(RestoreJournal journal) {
+        mJournal = journal;
+    }
+
+    @Override
+    public void onSetting(String section, String name, String value) throws IOException {
+        SettingsNamespace namespace = SettingsNamespace.fromSection(section);
+        if (namespace == null || value == null) {
+            return;
+        }
+        if (mDifferential && value.equals(getSnapshot(namespace).get(name))) {
+            mSkipped++;
+            return;
+        }
+        ArrayList<ContentValues> pending = mPending.get(namespace);
+        if (pending == null) {
+            pending = new ArrayList<>(BATCH_SIZE);
+            mPending.put(namespace, pending);
+        }
+        ContentValues values = new ContentValues(2);
+        values.put("name", name);
+        values.put("value", value);
+        pending.add(values);
+        if (pending.size() >= BATCH_SIZE) {
+            flush(namespace, pending);
+        }
+    }
+
+    /**
+     * Sends every queued write to the provider.
+     */
+    public void flush() throws IOException {
+        for (Map.Entry<SettingsNamespace, ArrayList<ContentValues>> entry : mPending.entrySet()) {
+            flush(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void flush(SettingsNamespace namespace, ArrayList<ContentValues> pending)
+            throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (mJournal != null) {
+            journal(namespace, pending);
+        }
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(pending.size());
+        for (ContentValues values : pending) {
+            operations.add(ContentProviderOperation.newInsert(namespace.getUri())
+                    .withValues(values)
+                    .build());
+        }
+        try {
+            mClient.applyBatch(operations);
+            mWritten += pending.size();
+        } catch (OperationApplicationException | RemoteException | RuntimeException e) {
+            // The provider applies batches one by one without a transaction, so fall
+            // back to single writes to find out which keys were actually rejected.
+            Log.w(TAG, "Batch write to " + namespace.getSection() + " failed, retrying per key", e);
+            for (ContentValues values : pending) {
+                applySingle(namespace, values);
+            }
+        }
+        pending.clear();
+    }
+
+    private void journal(SettingsNamespace namespace, ArrayList<ContentValues> pending)
+            throws IOException {
+        Map<String, String> snapshot = getSnapshot(namespace);
+        Set<String> journaled = mJournaled.get(namespace);
+        if (journaled == null) {
+            journaled = new HashSet<>();
+            mJournaled.put(namespace, journaled);
+        }
+        for (ContentValues values : pending) {
+            String name = values.getAsString("name");
+            String prior = snapshot.get(name);
+            // Only the value from before the restore matters if a key shows up twice
+            if (!values.getAsString("value").equals(prior) && journaled.add(name)) {
+                mJournal.record(namespace.getSection(), name, prior);
+            }
+        }
+        mJournal.sync();
+    }
+
+    private void applySingle(SettingsNamespace namespace, ContentValues values) {
+        try {
+            mClient.insert(namespace.getUri(), values);
+            mWritten++;
+        } catch (RemoteException | RuntimeException e) {
+            Log.e(TAG, "Error restoring " + namespace.getSection() + " setting "
+                    + values.getAsString("name"), e);
+            mFailed++;
+        }
+    }
+
+    /**
+     * Number of keys written to the provider.
+     */
+    public int getWrittenCount() {
+        return mWritten;
+    }
+
+    /**
+     * Number of keys left alone because they already held the backed up value.
+     */
+    public int getSkippedCount() {
+        return mSkipped;
+    }
+
+    /**
+     * Number of keys the provider refused.
+     */
+    public int getFailedCount() {
+        return mFailed;
+    }
+
+    private Map<String, String> getSnapshot(SettingsNamespace namespace) {
+        Map<String, String> snapshot = mSnapshots.get(namespace);
+        if (snapshot == null) {
+            snapshot = querySnapshot(mClient, namespace);
+            mSnapshots.put(namespace, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Reads every name/value pair of a namespace with one provider query.
+     */
+    public static Map<String, String> querySnapshot(ContentProviderClient client,
+            SettingsNamespace namespace) {
+        Map<String, String> snapshot = new HashMap<>();
+        try (Cursor cursor = client.query(namespace.getUri(), PROJECTION, null, null, null)) {
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    String name = cursor.getString(0);
+                    if (name != null) {
+                        snapshot.put(name, cursor.getString(1));
+                    }
+                }
+            }
+        } catch (RemoteException | RuntimeException e) {
+            Log.e(TAG, "Unable to snapshot " + namespace.getSection() + " settings", e);
+        }
+        return snapshot;
+    }
+}
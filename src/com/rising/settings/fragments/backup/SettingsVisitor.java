@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import java.io.IOException;
+
+/**
+ * Receives the entries of a backup as they are read.
+ */
+public interface SettingsVisitor {
+
+    /**
+     * Called once for every entry, in file order.
+     *
+     * @param section the backup section the entry belongs to, e.g. "System"
+     * @param value the stored value, or null if the backup records the key as unset
+     */
+    void onSetting(String section, String name, String value) throws IOException;
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streams backup entries into one of the {@link BackupFormat}s.
+ *
+ * Entries are grouped into named sections, one per settings namespace.
+ * Closing the writer finishes the document and closes the underlying outputs.
+ */
+public interface SettingsWriter extends Closeable {
+
+    /**
+     * Starts a new section, ending any section left open.
+     */
+    void beginSection(String section) throws IOException;
+
+    void write(String name, String value) throws IOException;
+
+    void endSection() throws IOException;
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Incremental on-device settings snapshots.
+ *
+ * The store keeps one full base snapshot plus a chain of delta files in the binary
+ * backup format. Like a full backup, a snapshot holds the settings namespaces and the
+ * overlay and property sections. A hash of every value is kept in a small index, so
+ * a new snapshot only writes the keys whose value changed since the previous one;
+ * removed keys are recorded with a null value. Once {@link #MAX_DELTAS} deltas have
+ * piled up they are folded back into a new base. A snapshot taken with a different
+ * key scope than the chain was built with starts a new base.
+ */
+public class SnapshotStore {
+
+    private static final String TAG = "SnapshotStore";
+    private static final String DIR_NAME = "settings_snapshots";
+    private static final String BASE_FILE = "base.rsbk";
+    private static final String DELTA_PREFIX = "delta_";
+    private static final String DELTA_SUFFIX = ".rsbk";
+    private static final String INDEX_FILE = "hashes.idx";
+    private static final int INDEX_VERSION = 2;
+    private static final int MAX_DELTAS = 8;
+    private static final String[] PROJECTION = { "name", "value" };
+
+    private static final Object sLock = new Object();
+
+    private final File mDir;
+
+    public SnapshotStore(Context context) {
+        mDir = new File(context.getFilesDir(), DIR_NAME);
+    }
+
+    /**
+     * Outcome of {@link #takeSnapshot}.
+     */
+    public static class Stats {
+        /** Keys written to the new snapshot file. */
+        public final int changed;
+        /** Size of the file written, in bytes. */
+        public final long bytes;
+        /** Whether a full base snapshot was written instead of a delta. */
+        public final boolean full;
+
+        Stats(int changed, long bytes, boolean full) {
+            this.changed = changed;
+            this.bytes = bytes;
+            this.full = full;
+        }
+    }
+
+    /**
+     * Records the current settings, writing only what changed since the last snapshot.
+     *
+     * @param keyIndex limits the snapshot to personalization keys when not null
+     */
+    public Stats takeSnapshot(Context context, PreferenceKeyIndex keyIndex)
+            throws IOException {
+        Context appContext = context.getApplicationContext();
+        ContentResolver resolver = appContext.getContentResolver();
+        PreferenceKeyIndex propertyIndex = keyIndex != null
+                ? keyIndex : PreferenceKeyIndex.getInstance(appContext);
+        long scopeHash = getScopeHash(keyIndex);
+        synchronized (sLock) {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                throw new IOException("Unable to create " + mDir);
+            }
+            Index index = readIndex();
+            boolean full = index == null || index.scopeHash != scopeHash
+                    || !getBaseFile().exists();
+            if (full) {
+                index = new Index();
+                index.scopeHash = scopeHash;
+                deleteDeltas();
+            }
+            File target = full ? getBaseFile() : getDeltaFile(index.sequence + 1);
+            int changed = 0;
+            try (SettingsWriter writer = new SettingsBinaryWriter(new FileOutputStream(target))) {
+                for (SettingsNamespace namespace : SettingsNamespace.values()) {
+                    changed += writeChanges(writer, resolver, namespace, index,
+                            keyIndex != null ? keyIndex.getKeys(namespace) : null);
+                }
+                changed += writeChanges(writer, OverlayState.SECTION,
+                        OverlayState.capture(appContext), index);
+                changed += writeChanges(writer, PropertyState.SECTION,
+                        PropertyState.capture(propertyIndex), index);
+            } catch (IOException | RuntimeException e) {
+                target.delete();
+                throw e;
+            }
+            if (!full) {
+                if (changed == 0) {
+                    // Nothing moved since the last snapshot, keep the chain as it is
+                    target.delete();
+                    return new Stats(0, 0, false);
+                }
+                index.sequence++;
+            }
+            writeIndex(index);
+            Stats stats = new Stats(changed, target.length(), full);
+            if (listDeltas().size() >= MAX_DELTAS) {
+                compact();
+            }
+            return stats;
+        }
+    }
+
+    private int writeChanges(SettingsWriter writer, ContentResolver resolver,
+            SettingsNamespace namespace, Index index, Set<String> scope) throws IOException {
+        Map<String, Long> hashes = index.getHashes(namespace.getSection());
+        Set<String> seen = new HashSet<>();
+        int changed = 0;
+        writer.beginSection(namespace.getSection());
+        try (Cursor cursor = resolver.query(namespace.getUri(), PROJECTION, null, null, null)) {
+            if (cursor == null) {
+                // Keep the previous state rather than recording every key as removed
+                Log.e(TAG, "Unable to query " + namespace.getSection() + " settings");
+                writer.endSection();
+                return 0;
+            }
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                String value = cursor.getString(1);
+                if (name == null || value == null || (scope != null && !scope.contains(name))) {
+                    continue;
+                }
+                seen.add(name);
+                changed += writeIfChanged(writer, hashes, name, value);
+            }
+        }
+        changed += writeRemoved(writer, hashes, seen, scope);
+        writer.endSection();
+        return changed;
+    }
+
+    private static int writeChanges(SettingsWriter writer, String section,
+            Map<String, String> entries, Index index) throws IOException {
+        Map<String, Long> hashes = index.getHashes(section);
+        int changed = 0;
+        writer.beginSection(section);
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            changed += writeIfChanged(writer, hashes, entry.getKey(), entry.getValue());
+        }
+        changed += writeRemoved(writer, hashes, entries.keySet(), null);
+        writer.endSection();
+        return changed;
+    }
+
+    private static int writeIfChanged(SettingsWriter writer, Map<String, Long> hashes,
+            String name, String value) throws IOException {
+        long hash = hash(value);
+        Long previous = hashes.put(name, hash);
+        if (previous != null && previous == hash) {
+            return 0;
+        }
+        writer.write(name, value);
+        return 1;
+    }
+
+    /**
+     * Records the keys of the last snapshot that are gone now. Keys outside
+     * {@code scope} were not looked at and are left alone.
+     */
+    private static int writeRemoved(SettingsWriter writer, Map<String, Long> hashes,
+            Set<String> seen, Set<String> scope) throws IOException {
+        int changed = 0;
+        for (Iterator<String> it = hashes.keySet().iterator(); it.hasNext(); ) {
+            String name = it.next();
+            if (!seen.contains(name) && (scope == null || scope.contains(name))) {
+                writer.write(name, null);
+                it.remove();
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Identifies the key scope of a snapshot, 0 when it is not scoped.
+     */
+    private static long getScopeHash(PreferenceKeyIndex keyIndex) {
+        if (keyIndex == null) {
+            return 0;
+        }
+        StringBuilder scope = new StringBuilder();
+        for (SettingsNamespace namespace : SettingsNamespace.values()) {
+            List<String> keys = new ArrayList<>(keyIndex.getKeys(namespace));
+            Collections.sort(keys);
+            scope.append(namespace.getSection()).append('\n');
+            for (String key : keys) {
+                scope.append(key).append('\n');
+            }
+        }
+        return hash(scope.toString());
+    }
+
+    /**
+     * Visits the base snapshot followed by every delta in order. Later entries
+     * supersede earlier ones and null values mark keys that were removed.
+     */
+    public void read(SettingsVisitor visitor) throws IOException {
+        synchronized (sLock) {
+            if (!getBaseFile().exists()) {
+                throw new FileNotFoundException("No snapshot taken yet");
+            }
+            readFile(getBaseFile(), visitor);
+            for (File delta : listDeltas()) {
+                readFile(delta, visitor);
+            }
+        }
+    }
+
+    /**
+     * Writes the current state of the snapshot chain as a single backup.
+     */
+    public void export(SettingsWriter writer) throws IOException {
+        synchronized (sLock) {
+            writeState(writer, fold());
+        }
+    }
+
+    /**
+     * Folds all deltas into a new base snapshot.
+     */
+    public void compact() throws IOException {
+        synchronized (sLock) {
+            List<File> deltas = listDeltas();
+            if (deltas.isEmpty()) {
+                return;
+            }
+            AtomicFile base = new AtomicFile(getBaseFile());
+            Map<String, LinkedHashMap<String, String>> state = fold();
+            FileOutputStream out = base.startWrite();
+            try {
+                SettingsBinaryWriter writer = new SettingsBinaryWriter(new NonClosingOutputStream(out));
+                writeState(writer, state);
+                writer.close();
+                base.finishWrite(out);
+            } catch (IOException | RuntimeException e) {
+                base.failWrite(out);
+                throw e;
+            }
+            for (File delta : deltas) {
+                delta.delete();
+            }
+            Log.d(TAG, "Compacted " + deltas.size() + " deltas into " + getBaseFile().length() + " bytes");
+        }
+    }
+
+    /**
+     * Total size of the snapshot chain on disk, in bytes.
+     */
+    public long getSize() {
+        synchronized (sLock) {
+            long size = getBaseFile().length();
+            for (File delta : listDeltas()) {
+                size += delta.length();
+            }
+            return size;
+        }
+    }
+
+    public boolean hasSnapshot() {
+        return getBaseFile().exists();
+    }
+
+    private Map<String, LinkedHashMap<String, String>> fold() throws IOException {
+        Map<String, LinkedHashMap<String, String>> state = new LinkedHashMap<>();
+        read((section, name, value) -> {
+            LinkedHashMap<String, String> entries = state.get(section);
+            if (entries == null) {
+                entries = new LinkedHashMap<>();
+                state.put(section, entries);
+            }
+            if (value == null) {
+                entries.remove(name);
+            } else {
+                entries.put(name, value);
+            }
+        });
+        return state;
+    }
+
+    private static void writeState(SettingsWriter writer,
+            Map<String, LinkedHashMap<String, String>> state) throws IOException {
+        for (Map.Entry<String, LinkedHashMap<String, String>> section : state.entrySet()) {
+            writer.beginSection(section.getKey());
+            for (Map.Entry<String, String> entry : section.getValue().entrySet()) {
+                writer.write(entry.getKey(), entry.getValue());
+            }
+            writer.endSection();
+        }
+    }
+
+    private static void readFile(File file, SettingsVisitor visitor) throws IOException {
+        try (SettingsBinaryReader reader = new SettingsBinaryReader(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            reader.read(visitor);
+        }
+    }
+
+    private File getBaseFile() {
+        return new File(mDir, BASE_FILE);
+    }
+
+    private File getDeltaFile(int sequence) {
+        return new File(mDir, String.format("%s%06d%s", DELTA_PREFIX, sequence, DELTA_SUFFIX));
+    }
+
+    private List<File> listDeltas() {
+        File[] files = mDir.listFiles((dir, name) ->
+                name.startsWith(DELTA_PREFIX) && name.endsWith(DELTA_SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        // Zero padded sequence numbers sort in creation order
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private void deleteDeltas() {
+        for (File delta : listDeltas()) {
+            delta.delete();
+        }
+    }
+
+    /**
+     * Per-section value hashes of the last snapshot, plus the delta sequence and the
+     * key scope of the chain.
+     */
+    private static class Index extends HashMap<String, Map<String, Long>> {
+        int sequence;
+        long scopeHash;
+
+        Map<String, Long> getHashes(String section) {
+            Map<String, Long> hashes = get(section);
+            if (hashes == null) {
+                hashes = new HashMap<>();
+                put(section, hashes);
+            }
+            return hashes;
+        }
+    }
+
+    private Index readIndex() {
+        AtomicFile file = new AtomicFile(new File(mDir, INDEX_FILE));
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(file.openRead()))) {
+            if (in.readInt() != INDEX_VERSION) {
+                return null;
+            }
+            Index index = new Index();
+            index.sequence = in.readInt();
+            index.scopeHash = in.readLong();
+            int sections = in.readInt();
+            for (int i = 0; i < sections; i++) {
+                Map<String, Long> hashes = index.getHashes(in.readUTF());
+                int count = in.readInt();
+                for (int j = 0; j < count; j++) {
+                    hashes.put(in.readUTF(), in.readLong());
+                }
+            }
+            return index;
+        } catch (IOException e) {
+            // A broken index only costs a full snapshot
+            Log.w(TAG, "Unable to read snapshot index", e);
+            return null;
+        }
+    }
+
+    private void writeIndex(Index index) throws IOException {
+        AtomicFile file = new AtomicFile(new File(mDir, INDEX_FILE));
+        FileOutputStream out = file.startWrite();
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(INDEX_VERSION);
+            data.writeInt(index.sequence);
+            data.writeLong(index.scopeHash);
+            data.writeInt(index.size());
+            for (Map.Entry<String, Map<String, Long>> section : index.entrySet()) {
+                data.writeUTF(section.getKey());
+                Map<String, Long> hashes = section.getValue();
+                data.writeInt(hashes.size());
+                for (Map.Entry<String, Long> entry : hashes.entrySet()) {
+                    data.writeUTF(entry.getKey());
+                    data.writeLong(entry.getValue());
+                }
+            }
+            data.flush();
+            file.finishWrite(out);
+        } catch (IOException | RuntimeException e) {
+            file.failWrite(out);
+            throw e;
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-16 code units of a value.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash ^= c & 0xFF;
+            hash *= 0x100000001b3L;
+            hash ^= c >>> 8;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Lets {@link AtomicFile} close the stream it handed out itself.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.backup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Copies every write to each of the wrapped streams.
+ */
+class TeeOutputStream extends OutputStream {
+    private final OutputStream[] mOutputs;
+
+    private TeeOutputStream(OutputStream[] outputs) {
+        mOutputs = outputs;
+    }
+
+    /**
+     * Returns a stream writing to all of the given outputs.
+     */
+    static OutputStream of(OutputStream... outputs) {
+        return outputs.length == 1 ? outputs[0] : new TeeOutputStream(outputs);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        for (OutputStream out : mOutputs) {
+            out.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (OutputStream out : mOutputs) {
+            out.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (OutputStream out : mOutputs) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (OutputStream out : mOutputs) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
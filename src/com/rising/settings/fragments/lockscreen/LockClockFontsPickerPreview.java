@@ -32,7 +32,6 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.PopupWindow;
 import android.widget.Spinner;
 import android.widget.TextView;
@@ -42,13 +41,15 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import androidx.viewpager.widget.PagerAdapter;
 import androidx.viewpager.widget.ViewPager;
 
 import com.android.internal.logging.nano.MetricsProto;
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
-import com.rising.settings.fragments.ui.fonts.FontArrayAdapter;
+import com.rising.settings.fragments.ui.fonts.FontListAdapter;
 import com.rising.settings.fragments.ui.fonts.FontManager;
 import com.google.android.material.floatingactionbutton.ExtendedFloatingActionButton;
 
@@ -122,23 +123,23 @@ public class LockClockFontsPickerPreview extends SettingsPreferenceFragment {
             View popupView = LayoutInflater.from(getActivity()).inflate(R.layout.popup_font_selector, null);
             PopupWindow popupWindow = new PopupWindow(popupView, ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT, true);
 
-            ListView fontListView = popupView.findViewById(R.id.font_list_view);
-            FontArrayAdapter fontAdapter = new FontArrayAdapter(
+            RecyclerView fontList = popupView.findViewById(R.id.font_list);
+            FontListAdapter fontAdapter = new FontListAdapter(
                     getActivity(),
-                    android.R.layout.simple_list_item_1,
-                    fontPackageNames,
                     fontManager,
-                    isNightMode()
+                    fontPackageNames,
+                    isNightMode(),
+                    (position, fontPackage) -> {
+                        mCurrentFontPosition = position;
+                        applyFontToAllPreviews(fontPackage);
+                        fontSelector.setText(fontManager.getLabel(getContext(), fontPackage));
+                        popupWindow.dismiss();
+                    }
             );
-            fontListView.setAdapter(fontAdapter);
-
-            fontListView.setOnItemClickListener((parent, view, position, id) -> {
-                mCurrentFontPosition = position;
-                String fontPackage = fontPackageNames.get(mCurrentFontPosition);
-                applyFontToAllPreviews(fontPackage);
-                fontSelector.setText(fontManager.getLabel(getContext(), fontPackage));
-                popupWindow.dismiss();
-            });
+            fontList.setLayoutManager(new LinearLayoutManager(getActivity()));
+            fontList.setHasFixedSize(true);
+            fontList.setAdapter(fontAdapter);
+            popupWindow.setOnDismissListener(fontAdapter::release);
 
             popupView.setBackgroundResource(R.drawable.custom_background);
             Drawable backgroundDrawable = popupView.getBackground();
@@ -174,7 +175,7 @@ public class LockClockFontsPickerPreview extends SettingsPreferenceFragment {
                 String fontPackage = fontPackageNames.get(mCurrentFontPosition);
                 if (!isStaticClockStyle(mClockPosition)) {
                     applyFontToAllPreviews(fontPackage);
-                    fontManager.enableFontPackage(mCurrentFontPosition);
+                    fontManager.enableFontPackage(fontPackage);
                 }
                 Settings.Secure.putIntForUser(getContext().getContentResolver(), 
                     "clock_style", mClockPosition, UserHandle.USER_CURRENT);
@@ -22,6 +22,7 @@ import androidx.preference.Preference
 import androidx.preference.PreferenceFragmentCompat
 
 import com.android.settings.R
+import com.rising.settings.utils.AppInfoCache
 
 class LockscreenShortcuts : PreferenceFragmentCompat() {
 
@@ -97,28 +98,20 @@ class LockscreenShortcuts : PreferenceFragmentCompat() {
     }
 
     private fun updateCustomAppSummaries() {
-        val packageManager = requireContext().packageManager
+        val appInfoCache = AppInfoCache.getInstance(requireContext())
 
         val customAppLeftPackage = Settings.System.getString(requireContext().contentResolver, "keyguard_shortcut_custom_app_left")
         if (!customAppLeftPackage.isNullOrEmpty()) {
-            val appLabel = try {
-                packageManager.getApplicationLabel(packageManager.getApplicationInfo(customAppLeftPackage, 0))
-            } catch (e: Exception) {
-                null
-            }
-            keyguardCustomAppLeftPreference.summary = appLabel?.toString() ?: customAppLeftPackage
+            keyguardCustomAppLeftPreference.summary =
+                appInfoCache.getLabel(customAppLeftPackage) ?: customAppLeftPackage
         } else {
             keyguardCustomAppLeftPreference.summary = getString(R.string.keyguard_shortcut_custom_app_left_summary)
         }
 
         val customAppRightPackage = Settings.System.getString(requireContext().contentResolver, "keyguard_shortcut_custom_app_right")
         if (!customAppRightPackage.isNullOrEmpty()) {
-            val appLabel = try {
-                packageManager.getApplicationLabel(packageManager.getApplicationInfo(customAppRightPackage, 0))
-            } catch (e: Exception) {
-                null
-            }
-            keyguardCustomAppRightPreference.summary = appLabel?.toString() ?: customAppRightPackage
+            keyguardCustomAppRightPreference.summary =
+                appInfoCache.getLabel(customAppRightPackage) ?: customAppRightPackage
         } else {
             keyguardCustomAppRightPreference.summary = getString(R.string.keyguard_shortcut_custom_app_right_summary)
         }
@@ -32,6 +32,7 @@ import androidx.appcompat.app.AlertDialog
 import androidx.fragment.app.DialogFragment
 
 import com.android.settings.R
+import com.rising.settings.utils.AppInfoCache
 
 class PackagePickerDialogFragment(
     private val dialogTitleResId: Int,
@@ -44,16 +45,24 @@ class PackagePickerDialogFragment(
         val intent = Intent(Intent.ACTION_MAIN).apply {
             addCategory(Intent.CATEGORY_LAUNCHER)
         }
-        val apps = packageManager.queryIntentActivities(intent, 0)
-            .sortedBy { it.activityInfo.loadLabel(packageManager).toString() }
-
-        val appItems = apps.map { appInfo ->
+        val appInfoCache = AppInfoCache.getInstance(context)
+        val appItems = packageManager.queryIntentActivities(intent, 0).map { resolveInfo ->
+            val activityInfo = resolveInfo.activityInfo
+            // Activities without a label or icon of their own inherit the app's
             AppItem(
-                name = appInfo.activityInfo.loadLabel(packageManager).toString(),
-                packageName = appInfo.activityInfo.packageName,
-                icon = appInfo.activityInfo.loadIcon(packageManager)
+                name = if (activityInfo.labelRes == 0 && activityInfo.nonLocalizedLabel == null) {
+                    appInfoCache.getLabel(activityInfo.applicationInfo)
+                } else {
+                    activityInfo.loadLabel(packageManager).toString()
+                },
+                packageName = activityInfo.packageName,
+                icon = if (activityInfo.icon == 0) {
+                    appInfoCache.getIcon(activityInfo.applicationInfo)
+                } else {
+                    activityInfo.loadIcon(packageManager)
+                }
             )
-        }
+        }.sortedBy { it.name }
 
         val adapter = AppListAdapter(context, appItems)
 
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.spoof;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+
+import com.rising.settings.utils.AppInfoCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Labels of the installed apps, loaded once and searchable without PackageManager.
+ *
+ * Every label is resolved a single time when the index is built, and a lowercase
+ * search key is stored next to it. Filtering is incremental: when a query extends
+ * the previous one only the previous matches are scanned again.
+ */
+public class AppLabelIndex {
+
+    /**
+     * One indexed app.
+     */
+    public static class Entry {
+        public final String packageName;
+        public final String label;
+        final String mKey;
+
+        Entry(String packageName, String label) {
+            this.packageName = packageName;
+            this.label = label;
+            mKey = label.toLowerCase(Locale.getDefault());
+        }
+    }
+
+    private final List<Entry> mEntries;
+    private String mLastQuery = "";
+    private List<Entry> mLastResult;
+
+    private AppLabelIndex(List<Entry> entries) {
+        mEntries = Collections.unmodifiableList(entries);
+        mLastResult = mEntries;
+    }
+
+    /**
+     * Indexes the launchable apps, sorted by label. Labels come from
+     * {@link AppInfoCache}, which may still block on PackageManager, so call off the
+     * main thread.
+     */
+    public static AppLabelIndex build(Context context, boolean includeSystemApps) {
+        PackageManager pm = context.getPackageManager();
+        AppInfoCache appInfoCache = AppInfoCache.getInstance(context);
+        List<Entry> entries = new ArrayList<>();
+        for (ApplicationInfo app : pm.getInstalledApplications(0)) {
+            if (!includeSystemApps && (app.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
+                continue;
+            }
+            if ((app.flags & ApplicationInfo.FLAG_HAS_CODE) == 0) {
+                continue;
+            }
+            String label = appInfoCache.getLabel(app);
+            // auto generated overlays usually use the package name as app label
+            if (app.packageName.equals(label)) {
+                continue;
+            }
+            entries.add(new Entry(app.packageName, label));
+        }
+        Collections.sort(entries, (a, b) -> a.label.compareTo(b.label));
+        return new AppLabelIndex(entries);
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Entries whose label contains {@code query}, ignoring case, in label order.
+     */
+    public List<Entry> filter(String query) {
+        String key = query.toLowerCase(Locale.getDefault());
+        if (key.isEmpty()) {
+            mLastQuery = key;
+            mLastResult = mEntries;
+            return mEntries;
+        }
+        // A longer query can only match a subset of what the shorter one matched
+        List<Entry> candidates = key.startsWith(mLastQuery) ? mLastResult : mEntries;
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : candidates) {
+            if (entry.mKey.contains(key)) {
+                result.add(entry);
+            }
+        }
+        mLastQuery = key;
+        mLastResult = result;
+        return result;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.spoof;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.rising.settings.utils.BinaryCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Deduplicated on-disk cache of the applied game props.
+ *
+ * The props hook in frameworks reads one persist.sys.gameprops.&lt;package&gt;.&lt;key&gt;
+ * property per package and key, and {@link #apply} stages exactly those; the hook
+ * lives outside this app, so the properties cannot be replaced by this file. The
+ * database is the record of the last applied file, kept in this app's files
+ * directory. It stores every distinct device profile once and maps package names to
+ * profiles, so the next import can clear the properties of packages and keys it no
+ * longer sets without probing every installed package.
+ *
+ * Layout: the 4 byte magic "RGPD" and a format version byte, a varint profile count
+ * followed by every profile as a varint entry count and key/value strings, then a
+ * varint package count followed by the package names in sorted order, each with the
+ * varint index of its profile. Varints and strings use {@link BinaryCodec}.
+ */
+public final class GamePropsStore {
+
+    private static final String TAG = "GamePropsStore";
+
+    private static final String PROPERTY_PREFIX = "persist.sys.gameprops.";
+    private static final String DIR_NAME = "spoof";
+    private static final String FILE_NAME = "gameprops.db";
+    private static final byte[] MAGIC = { 'R', 'G', 'P', 'D' };
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_STRING_LENGTH = 64 * 1024;
+
+    private final List<Map<String, String>> mProfiles;
+    // Sorted by package name, parallel to mProfileIndex
+    private final String[] mPackages;
+    private final int[] mProfileIndex;
+
+    private GamePropsStore(List<Map<String, String>> profiles, String[] packages,
+            int[] profileIndex) {
+        mProfiles = profiles;
+        mPackages = packages;
+        mProfileIndex = profileIndex;
+    }
+
+    /**
+     * Location of the record of the last applied game props.
+     */
+    public static File getFile(Context context) {
+        return new File(new File(context.getFilesDir(), DIR_NAME), FILE_NAME);
+    }
+
+    /**
+     * Props to apply for {@code packageName}, or null if the package is not spoofed.
+     */
+    public Map<String, String> lookup(String packageName) {
+        int index = Arrays.binarySearch(mPackages, packageName);
+        return index >= 0 ? mProfiles.get(mProfileIndex[index]) : null;
+    }
+
+    /**
+     * Collects packages and deduplicates their profiles.
+     */
+    public static class Builder {
+        private final List<Map<String, String>> mProfiles = new ArrayList<>();
+        private final Map<Map<String, String>, Integer> mProfileIds = new HashMap<>();
+        private final TreeMap<String, Integer> mPackages = new TreeMap<>();
+
+        public Builder put(String packageName, Map<String, String> props) {
+            if (props.isEmpty()) {
+                return this;
+            }
+            Map<String, String> profile = Collections.unmodifiableMap(new TreeMap<>(props));
+            Integer id = mProfileIds.get(profile);
+            if (id == null) {
+                id = mProfiles.size();
+                mProfiles.add(profile);
+                mProfileIds.put(profile, id);
+            }
+            mPackages.put(packageName, id);
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return mPackages.isEmpty();
+        }
+
+        public GamePropsStore build() {
+            String[] packages = mPackages.keySet().toArray(new String[0]);
+            int[] profileIndex = new int[packages.length];
+            for (int i = 0; i < packages.length; i++) {
+                profileIndex[i] = mPackages.get(packages[i]);
+            }
+            return new GamePropsStore(new ArrayList<>(mProfiles), packages, profileIndex);
+        }
+    }
+
+    /**
+     * Stages the per-package properties of this database. Properties that
+     * {@code previous} set and this database does not are cleared.
+     *
+     * @param previous the database that was applied last, may be null
+     */
+    public void apply(GamePropsStore previous, PropertyWriter writer) {
+        if (previous != null) {
+            for (int i = 0; i < previous.mPackages.length; i++) {
+                Map<String, String> props = lookup(previous.mPackages[i]);
+                for (String key : previous.mProfiles.get(previous.mProfileIndex[i]).keySet()) {
+                    if (props == null || !props.containsKey(key)) {
+                        writer.put(getProperty(previous.mPackages[i], key), "");
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < mPackages.length; i++) {
+            for (Map.Entry<String, String> entry : mProfiles.get(mProfileIndex[i]).entrySet()) {
+                writer.put(getProperty(mPackages[i], entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    private static String getProperty(String packageName, String key) {
+        return PROPERTY_PREFIX + packageName + "." + key;
+    }
+
+    /**
+     * Writes the database.
+     */
+    public void write(File file) throws IOException {
+        byte[] bytes = encode();
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = atomicFile.startWrite();
+        try {
+            out.write(bytes);
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            atomicFile.failWrite(out);
+            throw e;
+        }
+        Log.d(TAG, "Wrote " + mPackages.length + " packages sharing " + mProfiles.size()
+                + " profiles in " + bytes.length + " bytes");
+    }
+
+    /**
+     * Reads a database written by {@link #write}, or returns null if there is none
+     * or it is unreadable.
+     */
+    public static GamePropsStore readIfExists(File file) {
+        try {
+            return read(file);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads a database written by {@link #write}.
+     */
+    public static GamePropsStore read(File file) throws IOException {
+        byte[] bytes = new AtomicFile(file).readFully();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            for (byte expected : MAGIC) {
+                if (in.readByte() != expected) {
+                    throw new IOException("Not a game props database");
+                }
+            }
+            int version = in.readUnsignedByte();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported game props version " + version);
+            }
+            BinaryCodec.Decoder decoder = new BinaryCodec.Decoder(in, MAX_STRING_LENGTH);
+            int profileCount = decoder.readVarInt();
+            List<Map<String, String>> profiles = new ArrayList<>(profileCount);
+            for (int i = 0; i < profileCount; i++) {
+                int entries = decoder.readVarInt();
+                Map<String, String> profile = new TreeMap<>();
+                for (int j = 0; j < entries; j++) {
+                    profile.put(decoder.readString(), decoder.readString());
+                }
+                profiles.add(Collections.unmodifiableMap(profile));
+            }
+            int packageCount = decoder.readVarInt();
+            String[] packages = new String[packageCount];
+            int[] profileIndex = new int[packageCount];
+            for (int i = 0; i < packageCount; i++) {
+                packages[i] = decoder.readString();
+                profileIndex[i] = decoder.readVarInt();
+                if (profileIndex[i] >= profileCount) {
+                    throw new IOException("Invalid profile index " + profileIndex[i]);
+                }
+            }
+            return new GamePropsStore(profiles, packages, profileIndex);
+        }
+    }
+
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        BinaryCodec.writeVarInt(out, mProfiles.size());
+        for (Map<String, String> profile : mProfiles) {
+            BinaryCodec.writeVarInt(out, profile.size());
+            for (Map.Entry<String, String> entry : profile.entrySet()) {
+                BinaryCodec.writeString(out, entry.getKey());
+                BinaryCodec.writeString(out, entry.getValue());
+            }
+        }
+        BinaryCodec.writeVarInt(out, mPackages.length);
+        for (int i = 0; i < mPackages.length; i++) {
+            BinaryCodec.writeString(out, mPackages[i]);
+            BinaryCodec.writeVarInt(out, mProfileIndex[i]);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
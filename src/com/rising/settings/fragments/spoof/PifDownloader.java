@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.spoof;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Downloads the Play Integrity Fix payload with a conditional request.
+ *
+ * The last payload that was applied is kept on disk together with the ETag and
+ * Last-Modified validators the server sent for it. Later downloads send them back
+ * as If-None-Match / If-Modified-Since, so an unchanged file costs a 304 response
+ * instead of a full transfer. {@link #fetch} does not touch the cache; callers
+ * {@link #commit} a result once its payload has been applied, so a payload that
+ * failed to apply is downloaded and applied again next time.
+ *
+ * The URL and timeouts are constructor arguments so the downloader can be pointed
+ * at a local HTTP server.
+ */
+public class PifDownloader {
+
+    private static final String TAG = "PifDownloader";
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10_000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 15_000;
+
+    private static final String PREFS_NAME = "pif_download";
+    private static final String PREF_URL = "url";
+    private static final String PREF_ETAG = "etag";
+    private static final String PREF_LAST_MODIFIED = "last_modified";
+    private static final String CACHE_DIR = "spoof";
+    private static final String CACHE_FILE = "pif.json";
+    private static final int MAX_PAYLOAD_BYTES = 256 * 1024;
+
+    /**
+     * Outcome of {@link #fetch}.
+     */
+    public static class Result {
+        /** The current payload, downloaded or taken from the cache. */
+        public final String payload;
+        /** Whether the server reported the cached payload as current. */
+        public final boolean notModified;
+
+        private final String mEtag;
+        private final String mLastModified;
+
+        Result(String payload, boolean notModified, String etag, String lastModified) {
+            this.payload = payload;
+            this.notModified = notModified;
+            mEtag = etag;
+            mLastModified = lastModified;
+        }
+    }
+
+    private final String mUrl;
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+    private final SharedPreferences mPrefs;
+    private final AtomicFile mCacheFile;
+
+    public PifDownloader(Context context, String url) {
+        this(context, url, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    public PifDownloader(Context context, String url, int connectTimeoutMs, int readTimeoutMs) {
+        mUrl = url;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mCacheFile = new AtomicFile(new File(new File(context.getFilesDir(), CACHE_DIR), CACHE_FILE));
+    }
+
+    /**
+     * Downloads the payload unless the server reports the cached one unchanged.
+     * Blocks, so call off the main thread.
+     */
+    public Result fetch() throws IOException {
+        String cached = readCache();
+        // Validators only apply to the cached copy of the same URL
+        boolean conditional = cached != null && mUrl.equals(mPrefs.getString(PREF_URL, null));
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        try {
+            connection.setConnectTimeout(mConnectTimeoutMs);
+            connection.setReadTimeout(mReadTimeoutMs);
+            connection.setUseCaches(false);
+            if (conditional) {
+                String etag = mPrefs.getString(PREF_ETAG, null);
+                String lastModified = mPrefs.getString(PREF_LAST_MODIFIED, null);
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            }
+
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && conditional) {
+                Log.d(TAG, "Payload not modified");
+                return new Result(cached, true, mPrefs.getString(PREF_ETAG, null),
+                        mPrefs.getString(PREF_LAST_MODIFIED, null));
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected HTTP response " + code);
+            }
+
+            String payload;
+            try (InputStream in = connection.getInputStream()) {
+                payload = readPayload(in);
+            }
+            Log.d(TAG, "Downloaded " + payload.length() + " chars");
+            return new Result(payload, false, connection.getHeaderField("ETag"),
+                    connection.getHeaderField("Last-Modified"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Keeps the payload of {@code result} and its validators for the next
+     * {@link #fetch}. Call only after the payload was applied.
+     */
+    public void commit(Result result) throws IOException {
+        if (!result.payload.equals(readCache())) {
+            writeCache(result.payload);
+        }
+        mPrefs.edit()
+                .putString(PREF_URL, mUrl)
+                .putString(PREF_ETAG, result.mEtag)
+                .putString(PREF_LAST_MODIFIED, result.mLastModified)
+                .apply();
+    }
+
+    /**
+     * The last payload that was applied, or null if there is none.
+     */
+    public String getCachedPayload() {
+        try {
+            return readCache();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cached payload", e);
+            return null;
+        }
+    }
+
+    private String readCache() throws IOException {
+        try {
+            return new String(mCacheFile.readFully(), StandardCharsets.UTF_8);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    private void writeCache(String payload) throws IOException {
+        File dir = mCacheFile.getBaseFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        FileOutputStream out = mCacheFile.startWrite();
+        try {
+            out.write(payload.getBytes(StandardCharsets.UTF_8));
+            mCacheFile.finishWrite(out);
+        } catch (IOException e) {
+            mCacheFile.failWrite(out);
+            throw e;
+        }
+    }
+
+    private static String readPayload(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (out.size() + read > MAX_PAYLOAD_BYTES) {
+                throw new IOException("Payload larger than " + MAX_PAYLOAD_BYTES + " bytes");
+            }
+            out.write(buffer, 0, read);
+        }
+        return out.toString(StandardCharsets.UTF_8.name());
+    }
+}
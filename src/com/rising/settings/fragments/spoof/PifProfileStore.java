@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.spoof;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.rising.settings.utils.BinaryCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Library of parsed Play Integrity Fix profiles.
+ *
+ * Every imported or downloaded pif.json is kept as a named profile, so switching
+ * back to an earlier one neither downloads nor parses JSON again. Switching stages
+ * the profile through {@link PropertyWriter}, which only writes the
+ * persist.sys.pihooks_ properties whose value differs, and clears the ones the
+ * new profile does not set. There is one store per process, and every call that
+ * writes the library or properties is meant for {@link SpoofExecutor}.
+ *
+ * Layout: the 4 byte magic "RPPL" and a format version byte, a varint profile
+ * count, an index of every profile name in sorted order with the varint offset of
+ * its entries, then the entries of each profile as a varint count and key/value
+ * strings. Strings and varints use {@link BinaryCodec}. A single profile is
+ * decoded without touching the others.
+ */
+public final class PifProfileStore {
+
+    private static final String TAG = "PifProfileStore";
+
+    public static final String PROPERTY_PREFIX = "persist.sys.pihooks_";
+
+    /** PIF fields that are applied as persist.sys.pihooks_ properties. */
+    public static final Set<String> PROFILE_KEYS = Collections.unmodifiableSet(
+            new LinkedHashSet<>(Arrays.asList(
+                    "ID", "BRAND", "DEVICE", "FINGERPRINT", "MANUFACTURER", "MODEL",
+                    "PRODUCT", "SECURITY_PATCH", "DEVICE_INITIAL_SDK_INT", "FIRST_API_LEVEL",
+                    "RELEASE", "INCREMENTAL", "TYPE", "TAGS")));
+
+    private static final String CACHE_DIR = "spoof";
+    private static final String FILE_NAME = "pif_profiles.db";
+    private static final String PREFS_NAME = "pif_profiles";
+    private static final String PREF_ACTIVE = "active";
+    private static final byte[] MAGIC = { 'R', 'P', 'P', 'L' };
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_STRING_LENGTH = 64 * 1024;
+
+    private static PifProfileStore sInstance;
+
+    private final AtomicFile mFile;
+    private final SharedPreferences mPrefs;
+
+    // Raw file contents and the decoded index, null until loaded
+    private byte[] mData;
+    private int mEntriesStart;
+    private TreeMap<String, Integer> mIndex;
+
+    public static synchronized PifProfileStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PifProfileStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PifProfileStore(Context context) {
+        mFile = new AtomicFile(new File(new File(context.getFilesDir(), CACHE_DIR), FILE_NAME));
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Name to store a profile under: its model and build ID.
+     */
+    public static String getDefaultName(Map<String, String> profile) {
+        String model = profile.getOrDefault("MODEL", "Unknown model");
+        String id = profile.get("ID");
+        return id == null || id.isEmpty() ? model : model + " (" + id + ")";
+    }
+
+    /**
+     * Names of the stored profiles in sorted order.
+     */
+    public synchronized List<String> getNames() throws IOException {
+        load();
+        return new ArrayList<>(mIndex.keySet());
+    }
+
+    /**
+     * Name of the profile that was activated last, or null.
+     */
+    public String getActiveName() {
+        return mPrefs.getString(PREF_ACTIVE, null);
+    }
+
+    /**
+     * The entries of a stored profile, or null if there is no such profile.
+     */
+    public synchronized Map<String, String> getProfile(String name) throws IOException {
+        load();
+        Integer offset = mIndex.get(name);
+        if (offset == null) {
+            return null;
+        }
+        int start = mEntriesStart + offset;
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(mData, start, mData.length - start))) {
+            BinaryCodec.Decoder decoder = new BinaryCodec.Decoder(in, MAX_STRING_LENGTH);
+            int count = decoder.readVarInt();
+            Map<String, String> profile = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                profile.put(decoder.readString(), decoder.readString());
+            }
+            return profile;
+        }
+    }
+
+    /**
+     * Adds a profile, replacing a stored one with the same name.
+     */
+    public synchronized void put(String name, Map<String, String> profile) throws IOException {
+        Map<String, Map<String, String>> profiles = readAll();
+        profiles.put(name, new TreeMap<>(profile));
+        writeAll(profiles);
+    }
+
+    public synchronized void remove(String name) throws IOException {
+        Map<String, Map<String, String>> profiles = readAll();
+        if (profiles.remove(name) != null) {
+            writeAll(profiles);
+        }
+        if (name.equals(getActiveName())) {
+            mPrefs.edit().remove(PREF_ACTIVE).apply();
+        }
+    }
+
+    /**
+     * Makes a stored profile the current one. Properties of the previous profile
+     * that the new one lacks are cleared, all others are only written if they
+     * differ. If any property cannot be written, the ones that were are set back to
+     * their previous value and the previous profile stays active.
+     *
+     * @throws IOException if the profile does not exist or could not be applied
+     */
+    public synchronized PropertyWriter.Report activate(String name) throws IOException {
+        Map<String, String> profile = getProfile(name);
+        if (profile == null) {
+            throw new IOException("No PIF profile named " + name);
+        }
+        Set<String> staleKeys = new LinkedHashSet<>(PROFILE_KEYS);
+        String activeName = getActiveName();
+        if (activeName != null && !activeName.equals(name)) {
+            Map<String, String> active = getProfile(activeName);
+            if (active != null) {
+                staleKeys.addAll(active.keySet());
+            }
+        }
+        staleKeys.removeAll(profile.keySet());
+
+        PropertyWriter writer = new PropertyWriter();
+        Map<String, String> previous = new ArrayMap<>();
+        for (String key : staleKeys) {
+            stage(writer, previous, PROPERTY_PREFIX + key, "");
+        }
+        for (Map.Entry<String, String> entry : profile.entrySet()) {
+            stage(writer, previous, PROPERTY_PREFIX + entry.getKey(), entry.getValue());
+        }
+        PropertyWriter.Report report = writer.commit();
+        if (!report.getFailed().isEmpty()) {
+            PropertyWriter rollback = new PropertyWriter();
+            for (String property : report.getChanged()) {
+                rollback.put(property, previous.get(property));
+            }
+            Log.e(TAG, "Unable to activate " + name + ", rolled back: " + rollback.commit());
+            throw new IOException("Unable to set " + report.getFailed());
+        }
+        mPrefs.edit().putString(PREF_ACTIVE, name).apply();
+        Log.d(TAG, "Activated " + name + ": " + report);
+        return report;
+    }
+
+    private static void stage(PropertyWriter writer, Map<String, String> previous,
+            String property, String value) {
+        previous.put(property, SystemProperties.get(property));
+        writer.put(property, value);
+    }
+
+    private void load() throws IOException {
+        if (mIndex != null) {
+            return;
+        }
+        TreeMap<String, Integer> index = new TreeMap<>();
+        byte[] data;
+        try {
+            data = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            mData = new byte[0];
+            mEntriesStart = 0;
+            mIndex = index;
+            return;
+        }
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        try (DataInputStream in = new DataInputStream(bytes)) {
+            for (byte expected : MAGIC) {
+                if (in.readByte() != expected) {
+                    throw new IOException("Not a PIF profile library");
+                }
+            }
+            int version = in.readUnsignedByte();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported PIF profile library version " + version);
+            }
+            BinaryCodec.Decoder decoder = new BinaryCodec.Decoder(in, MAX_STRING_LENGTH);
+            int count = decoder.readVarInt();
+            for (int i = 0; i < count; i++) {
+                index.put(decoder.readString(), decoder.readVarInt());
+            }
+            mEntriesStart = data.length - bytes.available();
+        }
+        mData = data;
+        mIndex = index;
+    }
+
+    private Map<String, Map<String, String>> readAll() throws IOException {
+        Map<String, Map<String, String>> profiles = new TreeMap<>();
+        for (String name : getNames()) {
+            profiles.put(name, getProfile(name));
+        }
+        return profiles;
+    }
+
+    private void writeAll(Map<String, Map<String, String>> profiles) throws IOException {
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(entryBytes);
+        Map<String, Integer> offsets = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, String>> profile : profiles.entrySet()) {
+            offsets.put(profile.getKey(), entries.size());
+            BinaryCodec.writeVarInt(entries, profile.getValue().size());
+            for (Map.Entry<String, String> entry : profile.getValue().entrySet()) {
+                BinaryCodec.writeString(entries, entry.getKey());
+                BinaryCodec.writeString(entries, entry.getValue());
+            }
+        }
+        entries.flush();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        BinaryCodec.writeVarInt(out, offsets.size());
+        for (Map.Entry<String, Integer> entry : offsets.entrySet()) {
+            BinaryCodec.writeString(out, entry.getKey());
+            BinaryCodec.writeVarInt(out, entry.getValue());
+        }
+        entryBytes.writeTo(out);
+        out.flush();
+
+        File dir = mFile.getBaseFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        FileOutputStream stream = mFile.startWrite();
+        try {
+            bytes.writeTo(stream);
+            mFile.finishWrite(stream);
+        } catch (IOException e) {
+            mFile.failWrite(stream);
+            throw e;
+        }
+        // Reload the index on next access
+        mIndex = null;
+        mData = null;
+    }
+}
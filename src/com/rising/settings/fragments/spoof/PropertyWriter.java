@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.spoof;
+
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects system property values and writes only the ones that differ.
+ *
+ * Every {@link SystemProperties#set} is a round trip to property_service, and a
+ * persist.sys property also rewrites the persistent property store, so values are
+ * staged with {@link #put} and compared with the current value on {@link #commit}.
+ */
+public class PropertyWriter {
+
+    private static final String TAG = "PropertyWriter";
+
+    /**
+     * What {@link #commit} did.
+     */
+    public static class Report {
+        private final List<String> mChanged = new ArrayList<>();
+        private final List<String> mFailed = new ArrayList<>();
+        private int mUnchanged;
+
+        /** Properties that were written because their value changed. */
+        public List<String> getChanged() {
+            return Collections.unmodifiableList(mChanged);
+        }
+
+        /** Properties that could not be written. */
+        public List<String> getFailed() {
+            return Collections.unmodifiableList(mFailed);
+        }
+
+        /** Number of properties that already held the staged value. */
+        public int getUnchangedCount() {
+            return mUnchanged;
+        }
+
+        /** Whether anything was written, i.e. whether a restart is worth asking for. */
+        public boolean hasChanges() {
+            return !mChanged.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return mChanged.size() + " changed, " + mUnchanged + " unchanged, "
+                    + mFailed.size() + " failed";
+        }
+    }
+
+    private final Map<String, String> mPending = new LinkedHashMap<>();
+
+    /**
+     * Stages a value. A later value for the same property replaces an earlier one.
+     */
+    public PropertyWriter put(String property, String value) {
+        mPending.put(property, value != null ? value : "");
+        return this;
+    }
+
+    /**
+     * Writes the staged values that differ from the current ones and clears the stage.
+     */
+    public Report commit() {
+        Report report = new Report();
+        for (Map.Entry<String, String> entry : mPending.entrySet()) {
+            String property = entry.getKey();
+            String value = entry.getValue();
+            if (value.equals(SystemProperties.get(property))) {
+                report.mUnchanged++;
+                continue;
+            }
+            try {
+                SystemProperties.set(property, value);
+                report.mChanged.add(property);
+                Log.d(TAG, "Set " + property + " = " + value);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to set " + property, e);
+                report.mFailed.add(property);
+            }
+        }
+        mPending.clear();
+        Log.d(TAG, "Committed properties: " + report);
+        return report;
+    }
+}
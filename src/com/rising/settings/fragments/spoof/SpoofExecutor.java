@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.spoof;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background executor bound to the lifecycle of a fragment.
+ *
+ * Tasks run on a small pool of named threads with a bounded queue, and every task
+ * is wrapped in a trace section carrying its name. Results are posted to the main
+ * thread and handed to their callback only while {@link #setResultsEnabled} is on,
+ * which the owner ties to the lifetime of its view. A task that does not fit in the
+ * queue is rejected and its callback gets a {@link RejectedExecutionException}.
+ * {@link #shutdown} interrupts running tasks and drops everything that is still
+ * queued or undelivered.
+ */
+public class SpoofExecutor {
+
+    private static final String TAG = "SpoofExecutor";
+    private static final int MAX_THREADS = 2;
+    private static final int MAX_QUEUED_TASKS = 8;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * Receives the outcome of a task on the main thread.
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        default void onError(Exception e) {
+        }
+    }
+
+    private final String mName;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mResultsEnabled;
+    private volatile boolean mShutdown;
+
+    public SpoofExecutor(String name) {
+        mName = name;
+        AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_QUEUED_TASKS),
+                runnable -> new Thread(runnable, name + " #" + threadCount.incrementAndGet()));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Whether results may be delivered, i.e. whether the owner's view exists.
+     * Results that complete while this is off are dropped.
+     */
+    public void setResultsEnabled(boolean enabled) {
+        mResultsEnabled = enabled;
+    }
+
+    /**
+     * Runs a task whose outcome nobody waits for.
+     */
+    public Future<?> execute(String taskName, Runnable task) {
+        return submit(taskName, () -> {
+            task.run();
+            return null;
+        }, null);
+    }
+
+    /**
+     * Runs a task and delivers its result or failure to {@code callback} on the main
+     * thread.
+     *
+     * @return the pending task, or null if it was rejected, in which case
+     *         {@code callback} receives the {@link RejectedExecutionException}
+     */
+    public <T> Future<?> submit(String taskName, Callable<T> task, Callback<T> callback) {
+        if (mShutdown) {
+            Log.w(TAG, mName + " is shut down, dropping " + taskName);
+            return null;
+        }
+        try {
+            return mExecutor.submit(() -> {
+                Trace.beginSection(mName + ":" + taskName);
+                try {
+                    T result = task.call();
+                    deliver(taskName, () -> callback.onResult(result), callback);
+                } catch (Exception e) {
+                    if (Thread.currentThread().isInterrupted() || mShutdown) {
+                        Log.d(TAG, taskName + " cancelled");
+                        return;
+                    }
+                    Log.e(TAG, taskName + " failed", e);
+                    deliver(taskName, () -> callback.onError(e), callback);
+                } finally {
+                    Trace.endSection();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Too many pending tasks, rejecting " + taskName);
+            deliver(taskName, () -> callback.onError(e), callback);
+            return null;
+        }
+    }
+
+    /**
+     * Cancels queued and running tasks. Nothing is delivered afterwards.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        mResultsEnabled = false;
+        mExecutor.shutdownNow();
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void deliver(String taskName, Runnable delivery, Callback<?> callback) {
+        if (callback == null) {
+            return;
+        }
+        mMainHandler.post(() -> {
+            if (mShutdown || !mResultsEnabled) {
+                Log.d(TAG, "View gone, dropping result of " + taskName);
+                return;
+            }
+            delivery.run();
+        });
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.spoof;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Streaming parser for pif.json and game props JSON files.
+ *
+ * The input is read token by token with {@link JsonReader} and checked against
+ * the expected schema on the way, so a file is never held as a string or a
+ * JSONObject tree. Input size, key count and value length are bounded. Schema
+ * errors name the JSON path they were found at, e.g. {@code $.PACKAGES_COD[3]},
+ * and syntax errors reported by JsonReader carry the line and column.
+ */
+public final class SpoofJsonParser {
+
+    private static final String TAG = "SpoofJsonParser";
+
+    public static final int MAX_INPUT_BYTES = 256 * 1024;
+    private static final int MAX_PIF_KEYS = 64;
+    private static final int MAX_GAME_GROUPS = 256;
+    private static final int MAX_GAME_PACKAGES = 4096;
+    private static final int MAX_VALUE_LENGTH = 1024;
+
+    /** Build fields a game props device profile may override. */
+    private static final Set<String> GAME_DEVICE_KEYS = new HashSet<>(Arrays.asList(
+            "BRAND", "DEVICE", "MANUFACTURER", "MODEL", "FINGERPRINT", "PRODUCT"));
+    private static final String PACKAGES_PREFIX = "PACKAGES_";
+    private static final String DEVICE_SUFFIX = "_DEVICE";
+    private static final Pattern PACKAGE_NAME =
+            Pattern.compile("[A-Za-z][A-Za-z0-9_]*(\\.[A-Za-z0-9_]+)+");
+
+    /**
+     * A file that is malformed, too large or does not match the schema.
+     */
+    public static class ParseException extends IOException {
+        private final String mPath;
+
+        ParseException(String path, String message) {
+            super(path + ": " + message);
+            mPath = path;
+        }
+
+        /** Path of the offending value, e.g. {@code $.PACKAGES_COD_DEVICE.MODEL}. */
+        public String getPath() {
+            return mPath;
+        }
+    }
+
+    private SpoofJsonParser() {
+    }
+
+    /**
+     * Parses a pif.json object into the profile {@link PifProfileStore} stores.
+     * Keys that are not PIF fields, such as options of other PIF implementations,
+     * are skipped without being read.
+     */
+    public static Map<String, String> parsePif(InputStream in) throws IOException {
+        try (JsonReader reader = newReader(in)) {
+            Map<String, String> profile = new TreeMap<>();
+            int keys = 0;
+            expect(reader, JsonToken.BEGIN_OBJECT, "$");
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                String path = "$." + key;
+                if (++keys > MAX_PIF_KEYS) {
+                    throw new ParseException(path, "more than " + MAX_PIF_KEYS + " keys");
+                }
+                if (!PifProfileStore.PROFILE_KEYS.contains(key)) {
+                    Log.d(TAG, "Skipping unknown PIF key " + key);
+                    reader.skipValue();
+                    continue;
+                }
+                profile.put(key, nextValue(reader, path));
+            }
+            reader.endObject();
+            expectEnd(reader);
+            if (!profile.containsKey("FINGERPRINT")) {
+                throw new ParseException("$", "missing FINGERPRINT");
+            }
+            Log.d(TAG, "Parsed PIF profile with " + profile.size() + " keys");
+            return profile;
+        }
+    }
+
+    /**
+     * Parses a game props file, where every PACKAGES_X array lists the packages that
+     * get the props of the PACKAGES_X_DEVICE object. Both halves of every pair must
+     * be present.
+     */
+    public static GamePropsStore parseGameProps(InputStream in) throws IOException {
+        Map<String, List<String>> packageGroups = new LinkedHashMap<>();
+        Map<String, Map<String, String>> deviceGroups = new LinkedHashMap<>();
+        int packageCount = 0;
+        try (JsonReader reader = newReader(in)) {
+            expect(reader, JsonToken.BEGIN_OBJECT, "$");
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                String path = "$." + key;
+                if (!key.startsWith(PACKAGES_PREFIX)
+                        || key.length() == PACKAGES_PREFIX.length()) {
+                    throw new ParseException(path, "expected a PACKAGES_ key");
+                }
+                if (packageGroups.size() + deviceGroups.size() >= 2 * MAX_GAME_GROUPS) {
+                    throw new ParseException(path, "more than " + MAX_GAME_GROUPS + " groups");
+                }
+                if (key.endsWith(DEVICE_SUFFIX)) {
+                    String group = key.substring(0, key.length() - DEVICE_SUFFIX.length());
+                    if (deviceGroups.put(group, readDevice(reader, path)) != null) {
+                        throw new ParseException(path, "duplicate key");
+                    }
+                } else {
+                    List<String> packages = readPackages(reader, path,
+                            MAX_GAME_PACKAGES - packageCount);
+                    packageCount += packages.size();
+                    if (packageGroups.put(key, packages) != null) {
+                        throw new ParseException(path, "duplicate key");
+                    }
+                }
+            }
+            reader.endObject();
+            expectEnd(reader);
+        }
+
+        GamePropsStore.Builder builder = new GamePropsStore.Builder();
+        for (Map.Entry<String, List<String>> group : packageGroups.entrySet()) {
+            Map<String, String> device = deviceGroups.remove(group.getKey());
+            if (device == null) {
+                throw new ParseException("$." + group.getKey(),
+                        "missing " + group.getKey() + DEVICE_SUFFIX);
+            }
+            for (String packageName : group.getValue()) {
+                builder.put(packageName, device);
+            }
+        }
+        if (!deviceGroups.isEmpty()) {
+            String group = deviceGroups.keySet().iterator().next();
+            throw new ParseException("$." + group + DEVICE_SUFFIX, "missing " + group);
+        }
+        Log.d(TAG, "Parsed " + packageCount + " game packages in "
+                + packageGroups.size() + " groups");
+        return builder.build();
+    }
+
+    private static List<String> readPackages(JsonReader reader, String path, int remaining)
+            throws IOException {
+        expect(reader, JsonToken.BEGIN_ARRAY, path);
+        List<String> packages = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String itemPath = path + "[" + packages.size() + "]";
+            if (packages.size() >= remaining) {
+                throw new ParseException(itemPath, "more than " + MAX_GAME_PACKAGES + " packages");
+            }
+            expect(reader, JsonToken.STRING, itemPath);
+            String packageName = reader.nextString();
+            if (packageName.length() > MAX_VALUE_LENGTH
+                    || !PACKAGE_NAME.matcher(packageName).matches()) {
+                throw new ParseException(itemPath, "invalid package name");
+            }
+            packages.add(packageName);
+        }
+        reader.endArray();
+        return packages;
+    }
+
+    private static Map<String, String> readDevice(JsonReader reader, String path)
+            throws IOException {
+        expect(reader, JsonToken.BEGIN_OBJECT, path);
+        Map<String, String> device = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            String keyPath = path + "." + key;
+            if (!GAME_DEVICE_KEYS.contains(key)) {
+                throw new ParseException(keyPath, "unknown device key");
+            }
+            device.put(key, nextValue(reader, keyPath));
+        }
+        reader.endObject();
+        if (device.isEmpty()) {
+            throw new ParseException(path, "empty device profile");
+        }
+        return device;
+    }
+
+    private static String nextValue(JsonReader reader, String path) throws IOException {
+        JsonToken token = reader.peek();
+        if (token != JsonToken.STRING && token != JsonToken.NUMBER) {
+            throw new ParseException(path, "expected a string or number but was " + token);
+        }
+        String value = reader.nextString();
+        if (value.length() > MAX_VALUE_LENGTH) {
+            throw new ParseException(path, "value longer than " + MAX_VALUE_LENGTH + " chars");
+        }
+        return value;
+    }
+
+    private static void expect(JsonReader reader, JsonToken expected, String path)
+            throws IOException {
+        JsonToken token = reader.peek();
+        if (token != expected) {
+            throw new ParseException(path, "expected " + expected + " but was " + token);
+        }
+    }
+
+    private static void expectEnd(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.END_DOCUMENT) {
+            throw new ParseException("$", "unexpected data after the top level object");
+        }
+    }
+
+    private static JsonReader newReader(InputStream in) {
+        return new JsonReader(new InputStreamReader(new BoundedInputStream(in),
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Fails once more than {@link #MAX_INPUT_BYTES} have been read.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long mCount;
+
+        BoundedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        private void count(int read) throws IOException {
+            mCount += read;
+            if (mCount > MAX_INPUT_BYTES) {
+                throw new ParseException("$", "input larger than " + MAX_INPUT_BYTES + " bytes");
+            }
+        }
+    }
+}
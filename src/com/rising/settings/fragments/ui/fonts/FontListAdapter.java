@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2024 The risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.fragments.ui.fonts;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.android.settings.R;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Font package list for the font selector popup.
+ *
+ * Rows whose label and typeface {@link FontManager} already caches are bound
+ * directly. Any other row shows its package name dimmed while its font is resolved
+ * on a background thread, and is rebound once it is ready. Rows within
+ * {@link #PREFETCH_DISTANCE} of the visible range are resolved ahead of scrolling.
+ * Call {@link #release} when the popup goes away.
+ */
+public class FontListAdapter extends RecyclerView.Adapter<FontListAdapter.FontViewHolder> {
+
+    private static final int PREFETCH_DISTANCE = 4;
+    private static final float PLACEHOLDER_ALPHA = 0.4f;
+
+    /**
+     * Receives taps on a font row.
+     */
+    public interface OnFontClickListener {
+        void onFontClick(int position, String fontPackage);
+    }
+
+    // Payload of a row whose font finished loading
+    private static class LoadedFont {
+        final String label;
+        final Typeface typeface;
+
+        LoadedFont(String label, Typeface typeface) {
+            this.label = label;
+            this.typeface = typeface;
+        }
+    }
+
+    private final Context mContext;
+    private final FontManager mFontManager;
+    private final List<String> mFontPackages;
+    private final Map<String, Integer> mPositions = new HashMap<>();
+    // Stable id of every package, assigned once per package name
+    private final Map<String, Long> mIds = new HashMap<>();
+    private final boolean mIsNightMode;
+    private final OnFontClickListener mListener;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Packages being loaded, only touched on the main thread
+    private final Set<String> mPending = new HashSet<>();
+
+    private final RecyclerView.OnScrollListener mPrefetchListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+            prefetch(recyclerView);
+        }
+    };
+
+    public FontListAdapter(Context context, FontManager fontManager, List<String> fontPackages,
+            boolean nightMode, OnFontClickListener listener) {
+        mContext = context;
+        mFontManager = fontManager;
+        mFontPackages = fontPackages;
+        mIsNightMode = nightMode;
+        mListener = listener;
+        for (int i = 0; i < fontPackages.size(); i++) {
+            mPositions.put(fontPackages.get(i), i);
+            mIds.putIfAbsent(fontPackages.get(i), (long) mIds.size());
+        }
+        setHasStableIds(true);
+    }
+
+    @NonNull
+    @Override
+    public FontViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(android.R.layout.simple_list_item_1, parent, false);
+        return new FontViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull FontViewHolder holder, int position) {
+        String fontPackage = mFontPackages.get(position);
+        holder.text.setTextColor(ContextCompat.getColor(mContext, mIsNightMode
+                ? R.color.font_drop_down_bg_light
+                : R.color.font_drop_down_bg_dark));
+        holder.itemView.setOnClickListener(v -> {
+            int adapterPosition = holder.getBindingAdapterPosition();
+            if (adapterPosition != RecyclerView.NO_POSITION) {
+                mListener.onFontClick(adapterPosition, mFontPackages.get(adapterPosition));
+            }
+        });
+        bindFont(holder, fontPackage);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull FontViewHolder holder, int position,
+            @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        LoadedFont font = (LoadedFont) payloads.get(payloads.size() - 1);
+        showFont(holder, font.label, font.typeface);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mIds.get(mFontPackages.get(position));
+    }
+
+    @Override
+    public int getItemCount() {
+        return mFontPackages.size();
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(mPrefetchListener);
+        // Start on the first screen before the first layout pass asks for it
+        recyclerView.post(() -> prefetch(recyclerView));
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(mPrefetchListener);
+    }
+
+    /**
+     * Stops loading fonts. Results that are still in flight are dropped.
+     */
+    public void release() {
+        mExecutor.shutdownNow();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void bindFont(FontViewHolder holder, String fontPackage) {
+        if (mFontManager.isCached(fontPackage)) {
+            showFont(holder, mFontManager.getLabel(mContext, fontPackage),
+                    mFontManager.getTypeface(mContext, fontPackage));
+            return;
+        }
+        holder.text.setText(fontPackage);
+        holder.text.setTypeface(Typeface.DEFAULT);
+        holder.text.setAlpha(PLACEHOLDER_ALPHA);
+        load(fontPackage);
+    }
+
+    private void showFont(FontViewHolder holder, String label, Typeface typeface) {
+        holder.text.setText(label);
+        holder.text.setTypeface(typeface != null ? typeface : Typeface.DEFAULT);
+        holder.text.setAlpha(1f);
+    }
+
+    private void prefetch(RecyclerView recyclerView) {
+        if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager)) {
+            return;
+        }
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) {
+            first = 0;
+            last = 0;
+        }
+        int start = Math.max(0, first - PREFETCH_DISTANCE);
+        int end = Math.min(mFontPackages.size() - 1, last + PREFETCH_DISTANCE);
+        for (int i = start; i <= end; i++) {
+            load(mFontPackages.get(i));
+        }
+    }
+
+    private void load(String fontPackage) {
+        if (mExecutor.isShutdown() || mFontManager.isCached(fontPackage)
+                || !mPending.add(fontPackage)) {
+            return;
+        }
+        mExecutor.execute(() -> {
+            String label = mFontManager.getLabel(mContext, fontPackage);
+            Typeface typeface = mFontManager.getTypeface(mContext, fontPackage);
+            mHandler.post(() -> {
+                mPending.remove(fontPackage);
+                Integer position = mPositions.get(fontPackage);
+                if (position != null) {
+                    notifyItemChanged(position, new LoadedFont(label, typeface));
+                }
+            });
+        });
+    }
+
+    public static class FontViewHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        FontViewHolder(View itemView) {
+            super(itemView);
+            text = itemView.findViewById(android.R.id.text1);
+        }
+    }
+}
@@ -15,16 +15,26 @@
  */
 package com.rising.settings.fragments.ui.fonts;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.content.om.OverlayInfo;
 import android.graphics.Typeface;
+import android.net.Uri;
+import android.util.LruCache;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.android.internal.util.android.ThemeUtils;
 
@@ -39,6 +49,39 @@ public class FontManager {
     
     private static final Set<String> HEADLINE_FONT_LABEL_MAP = new HashSet<>();
 
+    private static final int CACHE_SIZE = 64;
+
+    // Shared by every FontManager. Labels and typefaces are keyed by package and its
+    // last update time, so an updated overlay misses and its old entries age out.
+    // Typefaces are also keyed by font family mode, and a package without the font
+    // resource is cached as an empty Optional.
+    private static final LruCache<String, String> sLabelCache = new LruCache<>(CACHE_SIZE);
+    private static final LruCache<String, Optional<Typeface>> sTypefaceCache =
+            new LruCache<>(CACHE_SIZE);
+    // Last update time per package, dropped when the package or any overlay changes
+    private static final Map<String, Long> sPackageVersions = new ConcurrentHashMap<>();
+    private static boolean sReceiverRegistered;
+
+    // Font overlay packages per category, loaded on first use and reloaded in the
+    // background whenever overlays or packages change
+    private static final Map<String, List<String>> sFontPackages = new ConcurrentHashMap<>();
+    private static final ExecutorService sRefreshExecutor = Executors.newSingleThreadExecutor();
+
+    // Registered once against the application context and kept for the process
+    private static final BroadcastReceiver sPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (Intent.ACTION_OVERLAY_CHANGED.equals(intent.getAction()) || data == null) {
+                // The data is the overlay's target package, not the overlay
+                sPackageVersions.clear();
+            } else {
+                sPackageVersions.remove(data.getSchemeSpecificPart());
+            }
+            refreshFontPackages(ThemeUtils.getInstance(context.getApplicationContext()));
+        }
+    };
+
     private ThemeUtils mThemeUtils;
     private boolean isLockscreen;
 
@@ -49,6 +92,66 @@ public class FontManager {
     public FontManager(Context context, boolean lockscreen) {
         mThemeUtils = ThemeUtils.getInstance(context);
         isLockscreen = lockscreen;
+        registerReceiver(context.getApplicationContext());
+    }
+
+    private static synchronized void registerReceiver(Context appContext) {
+        if (sReceiverRegistered) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_OVERLAY_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        appContext.registerReceiver(sPackageReceiver, filter);
+        sReceiverRegistered = true;
+    }
+
+    /**
+     * Cache key of a package's current install, e.g. "com.font.overlay@1700000000000".
+     */
+    private static String getPackageKey(Context context, String pkg) {
+        Long version = sPackageVersions.get(pkg);
+        if (version == null) {
+            try {
+                version = context.getPackageManager().getPackageInfo(pkg, 0).lastUpdateTime;
+            } catch (PackageManager.NameNotFoundException e) {
+                version = -1L;
+            }
+            sPackageVersions.put(pkg, version);
+        }
+        return getPackageKey(pkg, version);
+    }
+
+    private static String getPackageKey(String pkg, long version) {
+        return pkg + "@" + version;
+    }
+
+    /**
+     * Reloads the cached font package lists off the main thread. Readers keep
+     * seeing the previous list until the new one is ready.
+     */
+    private static void refreshFontPackages(ThemeUtils themeUtils) {
+        sRefreshExecutor.execute(() -> {
+            for (String category : sFontPackages.keySet()) {
+                sFontPackages.put(category, loadFontPackages(themeUtils, category));
+            }
+        });
+    }
+
+    private static List<String> loadFontPackages(ThemeUtils themeUtils, String category) {
+        return Collections.unmodifiableList(new ArrayList<>(
+                themeUtils.getOverlayPackagesForCategory(category, DEFAULT_FONT_PACKAGE)));
+    }
+
+    private String getCategory() {
+        return isLockscreen ? LOCKSCREEN_FONT_OVERLAY_CATEGORY : FONT_OVERLAY_CATEGORY;
+    }
+
+    private static String getTypefaceKey(String packageKey, boolean lockscreen) {
+        return packageKey + (lockscreen ? "/clock" : "/body");
     }
 
     /**
@@ -59,17 +162,19 @@ public class FontManager {
     }
 
     /**
-     * Get all available font packages.
+     * Get all available font packages. The list is a shared snapshot that is only
+     * queried from OverlayManager the first time.
      */
     public List<String> getAllFontPackages() {
-        return mThemeUtils.getOverlayPackagesForCategory(isLockscreen ? LOCKSCREEN_FONT_OVERLAY_CATEGORY : FONT_OVERLAY_CATEGORY, DEFAULT_FONT_PACKAGE);
+        return sFontPackages.computeIfAbsent(getCategory(),
+                category -> loadFontPackages(mThemeUtils, category));
     }
 
     /**
      * Get the currently selected font package.
      */
     public String getCurrentFontPackage() {
-        List<OverlayInfo> overlayInfos = mThemeUtils.getOverlayInfos(isLockscreen ? LOCKSCREEN_FONT_OVERLAY_CATEGORY : FONT_OVERLAY_CATEGORY);
+        List<OverlayInfo> overlayInfos = mThemeUtils.getOverlayInfos(getCategory());
         return overlayInfos.stream()
                 .filter(OverlayInfo::isEnabled)
                 .map(OverlayInfo::getPackageName)
@@ -81,28 +186,68 @@ public class FontManager {
      * Enable a selected font package.
      */
     public void enableFontPackage(int position) {
-        if (position < 0 || position >= getAllFontPackages().size()) {
+        List<String> fontPackages = getAllFontPackages();
+        if (position < 0 || position >= fontPackages.size()) {
             throw new IllegalArgumentException("Invalid font package position: " + position);
         }
-        String selectedPackage = getAllFontPackages().get(position);
-        mThemeUtils.setOverlayEnabled(isLockscreen ? LOCKSCREEN_FONT_OVERLAY_CATEGORY : FONT_OVERLAY_CATEGORY, selectedPackage, DEFAULT_FONT_PACKAGE);
+        enableFontPackage(fontPackages.get(position));
+    }
+
+    /**
+     * Enable a font package by name, independent of later catalog refreshes.
+     */
+    public void enableFontPackage(String selectedPackage) {
+        mThemeUtils.setOverlayEnabled(getCategory(), selectedPackage, DEFAULT_FONT_PACKAGE);
     }
 
     /**
      * Gets the font package label.
      */
     public String getLabel(Context context, String pkg) {
+        String key = getPackageKey(context, pkg);
+        String label = sLabelCache.get(key);
+        if (label != null) {
+            return label;
+        }
         PackageManager pm = context.getPackageManager();
         try {
-            return pm.getApplicationInfo(pkg, 0).loadLabel(pm).toString();
-        } catch (PackageManager.NameNotFoundException e) {}
-        return pkg;
+            label = pm.getApplicationInfo(pkg, 0).loadLabel(pm).toString();
+        } catch (PackageManager.NameNotFoundException e) {
+            label = pkg;
+        }
+        sLabelCache.put(key, label);
+        return label;
+    }
+
+    /**
+     * Whether the label and typeface of a font package are cached, so that
+     * {@link #getLabel} and {@link #getTypeface} return without loading anything.
+     */
+    public boolean isCached(String pkg) {
+        Long version = sPackageVersions.get(pkg);
+        if (version == null) {
+            return false;
+        }
+        String key = getPackageKey(pkg, version);
+        return sLabelCache.get(key) != null
+                && sTypefaceCache.get(getTypefaceKey(key, isLockscreen)) != null;
     }
 
     /**
      * Gets the font package typeface.
      */
     public Typeface getTypeface(Context context, String pkg) {
+        String key = getTypefaceKey(getPackageKey(context, pkg), isLockscreen);
+        Optional<Typeface> cached = sTypefaceCache.get(key);
+        if (cached != null) {
+            return cached.orElse(null);
+        }
+        Typeface typeface = loadTypeface(context, pkg);
+        sTypefaceCache.put(key, Optional.ofNullable(typeface));
+        return typeface;
+    }
+
+    private Typeface loadTypeface(Context context, String pkg) {
         PackageManager pm = context.getPackageManager();
         try {
             Resources res = pkg.equals(DEFAULT_FONT_PACKAGE) ? Resources.getSystem()
@@ -28,7 +28,6 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.PopupWindow;
 import android.widget.TextView;
 import android.text.SpannableString;
@@ -37,6 +36,8 @@ import android.text.style.ForegroundColorSpan;
 import android.util.TypedValue;
 
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import androidx.fragment.app.Fragment;
 
 import com.android.internal.logging.nano.MetricsProto;
@@ -97,23 +98,23 @@ public class FontPickerPreview extends SettingsPreferenceFragment {
             View popupView = LayoutInflater.from(getActivity()).inflate(R.layout.popup_font_selector, null);
             PopupWindow popupWindow = new PopupWindow(popupView, ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT, true);
 
-            ListView fontListView = popupView.findViewById(R.id.font_list_view);
-            FontArrayAdapter fontAdapter = new FontArrayAdapter(
+            RecyclerView fontList = popupView.findViewById(R.id.font_list);
+            FontListAdapter fontAdapter = new FontListAdapter(
                     getActivity(),
-                    android.R.layout.simple_list_item_1,
-                    fontPackageNames,
                     fontManager,
-                    isNightMode()
+                    fontPackageNames,
+                    isNightMode(),
+                    (position, fontPackage) -> {
+                        currentFontPosition = position;
+                        applyFontToPreview(fontPackage);
+                        fontSelector.setText(fontManager.getLabel(getContext(), fontPackage));
+                        popupWindow.dismiss();
+                    }
             );
-            fontListView.setAdapter(fontAdapter);
-
-            fontListView.setOnItemClickListener((parent, view, position, id) -> {
-                currentFontPosition = position;
-                String fontPackage = fontPackageNames.get(currentFontPosition);
-                applyFontToPreview(fontPackage);
-                fontSelector.setText(fontManager.getLabel(getContext(), fontPackage));
-                popupWindow.dismiss();
-            });
+            fontList.setLayoutManager(new LinearLayoutManager(getActivity()));
+            fontList.setHasFixedSize(true);
+            fontList.setAdapter(fontAdapter);
+            popupWindow.setOnDismissListener(fontAdapter::release);
 
             popupView.setBackgroundResource(R.drawable.custom_background);
             Drawable backgroundDrawable = popupView.getBackground();
@@ -129,7 +130,7 @@ public class FontPickerPreview extends SettingsPreferenceFragment {
         applyFab = rootView.findViewById(R.id.apply_extended_fab);
         applyFab.setOnClickListener(view -> {
             if (currentFontPosition != -1) {
-                fontManager.enableFontPackage(currentFontPosition);
+                fontManager.enableFontPackage(fontPackageNames.get(currentFontPosition));
             }
         });
 
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared cache of app labels and icons.
+ *
+ * Entries are keyed by package name, version code and the locale, density and
+ * night mode they were resolved under, and kept in two places: an LRU bounded
+ * memory cache, and one label file and one icon file per package in the cache
+ * directory, so pickers can skip PackageManager after a process restart. Entries of
+ * a package are dropped when it is added, changed or removed, and all entries are
+ * dropped when the locale or an overlay changes, since an overlay can change the
+ * label or icon of any package. The key covers updates and locale changes that
+ * happened while the process was dead.
+ *
+ * Cache files are encoded and written on a background thread. Lookups that miss
+ * the memory cache still read the disk or PackageManager, so call them off the
+ * main thread where possible.
+ */
+public final class AppInfoCache {
+
+    private static final String TAG = "AppInfoCache";
+    private static final String DIR_NAME = "app_info_cache";
+    private static final String LABEL_SUFFIX = ".label";
+    private static final String ICON_SUFFIX = ".png";
+    private static final int MAX_LABELS = 1024;
+    private static final int MAX_ICON_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_ICON_SIZE_PX = 192;
+    private static final long DISK_THREAD_KEEP_ALIVE_SECONDS = 5;
+
+    private static AppInfoCache sInstance;
+
+    private final Context mContext;
+    private final PackageManager mPackageManager;
+    private final File mDir;
+    private final LruCache<String, String> mLabels = new LruCache<>(MAX_LABELS);
+    private final LruCache<String, Bitmap> mIcons = new LruCache<String, Bitmap>(MAX_ICON_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getAllocationByteCount();
+        }
+    };
+
+    // Bumped by every invalidation. A label or icon loaded before an invalidation is
+    // neither cached nor persisted, it may belong to the old config or package.
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    // Generation whose invalidation the disk executor has carried out. Cache files
+    // are only read once it caught up, so a file about to be deleted is not used.
+    private final AtomicInteger mDiskGeneration = new AtomicInteger();
+
+    // Encodes and writes cache files off the caller's thread; exits when idle
+    private final ThreadPoolExecutor mDiskExecutor = new ThreadPoolExecutor(1, 1,
+            DISK_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            runnable -> new Thread(runnable, TAG));
+
+    private final BroadcastReceiver mConfigReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidateAll();
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data != null) {
+                invalidate(data.getSchemeSpecificPart());
+            }
+        }
+    };
+
+    public static synchronized AppInfoCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppInfoCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AppInfoCache(Context context) {
+        mContext = context;
+        mPackageManager = context.getPackageManager();
+        mDir = new File(context.getCacheDir(), DIR_NAME);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+
+        context.registerReceiver(mConfigReceiver, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+        IntentFilter overlayFilter = new IntentFilter(Intent.ACTION_OVERLAY_CHANGED);
+        overlayFilter.addDataScheme("package");
+        context.registerReceiver(mConfigReceiver, overlayFilter);
+        mDiskExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Label of an installed app.
+     */
+    public String getLabel(ApplicationInfo app) {
+        String key = getKey(app);
+        String label = mLabels.get(key);
+        if (label != null) {
+            return label;
+        }
+        int generation = mGeneration.get();
+        File file = new File(mDir, key + LABEL_SUFFIX);
+        if (mDiskGeneration.get() == generation) {
+            try {
+                label = new String(new AtomicFile(file).readFully(), StandardCharsets.UTF_8);
+            } catch (FileNotFoundException e) {
+                label = null;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read cached label of " + app.packageName, e);
+                label = null;
+            }
+        }
+        if (label == null) {
+            label = app.loadLabel(mPackageManager).toString();
+            byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+            mDiskExecutor.execute(() -> {
+                if (generation == mGeneration.get()) {
+                    write(file, bytes);
+                }
+            });
+        }
+        if (generation == mGeneration.get()) {
+            mLabels.put(key, label);
+        }
+        return label;
+    }
+
+    /**
+     * Label of an installed package, or null if it is not installed.
+     */
+    public String getLabel(String packageName) {
+        ApplicationInfo app = getApplicationInfo(packageName);
+        return app != null ? getLabel(app) : null;
+    }
+
+    /**
+     * Icon of an installed app, scaled down to at most {@link #MAX_ICON_SIZE_PX}.
+     */
+    public Drawable getIcon(ApplicationInfo app) {
+        String key = getKey(app);
+        Bitmap icon = mIcons.get(key);
+        if (icon == null) {
+            int generation = mGeneration.get();
+            File file = new File(mDir, key + ICON_SUFFIX);
+            if (mDiskGeneration.get() == generation) {
+                icon = BitmapFactory.decodeFile(file.getPath());
+            }
+            if (icon == null) {
+                Bitmap loaded = toBitmap(app.loadIcon(mPackageManager));
+                mDiskExecutor.execute(() -> {
+                    if (generation == mGeneration.get()) {
+                        writeIcon(file, loaded);
+                    }
+                });
+                icon = loaded;
+            }
+            if (generation == mGeneration.get()) {
+                mIcons.put(key, icon);
+            }
+        }
+        return new BitmapDrawable(mContext.getResources(), icon);
+    }
+
+    /**
+     * Icon of an installed package, or null if it is not installed.
+     */
+    public Drawable getIcon(String packageName) {
+        ApplicationInfo app = getApplicationInfo(packageName);
+        return app != null ? getIcon(app) : null;
+    }
+
+    /**
+     * Drops every cached entry of a package.
+     */
+    public void invalidate(String packageName) {
+        int generation = mGeneration.incrementAndGet();
+        String prefix = packageName + "@";
+        for (String key : mLabels.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mLabels.remove(key);
+            }
+        }
+        for (String key : mIcons.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mIcons.remove(key);
+            }
+        }
+        mDiskExecutor.execute(() -> deleteFiles(prefix, generation));
+    }
+
+    /**
+     * Drops every cached entry, e.g. because the locale or the overlays changed.
+     */
+    public void invalidateAll() {
+        int generation = mGeneration.incrementAndGet();
+        mLabels.evictAll();
+        mIcons.evictAll();
+        mDiskExecutor.execute(() -> deleteFiles("", generation));
+    }
+
+    private void deleteFiles(String prefix, int generation) {
+        File[] files = mDir.listFiles((dir, name) -> name.startsWith(prefix));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDiskGeneration.set(generation);
+    }
+
+    private ApplicationInfo getApplicationInfo(String packageName) {
+        try {
+            return mPackageManager.getApplicationInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    private String getKey(ApplicationInfo app) {
+        Configuration config = mContext.getResources().getConfiguration();
+        int configHash = Objects.hash(config.getLocales().toLanguageTags(), config.densityDpi,
+                config.uiMode & Configuration.UI_MODE_NIGHT_MASK);
+        return app.packageName + "@" + app.longVersionCode + "@"
+                + Integer.toHexString(configHash);
+    }
+
+    private static Bitmap toBitmap(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap.getWidth() <= MAX_ICON_SIZE_PX && bitmap.getHeight() <= MAX_ICON_SIZE_PX) {
+                return bitmap;
+            }
+        }
+        int width = drawable.getIntrinsicWidth() > 0
+                ? Math.min(drawable.getIntrinsicWidth(), MAX_ICON_SIZE_PX) : MAX_ICON_SIZE_PX;
+        int height = drawable.getIntrinsicHeight() > 0
+                ? Math.min(drawable.getIntrinsicHeight(), MAX_ICON_SIZE_PX) : MAX_ICON_SIZE_PX;
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+        return bitmap;
+    }
+
+    private void writeIcon(File file, Bitmap icon) {
+        if (!ensureDir()) {
+            return;
+        }
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            icon.compress(Bitmap.CompressFormat.PNG, 100, out);
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to cache icon " + file.getName(), e);
+            if (out != null) {
+                atomicFile.failWrite(out);
+            }
+        }
+    }
+
+    private void write(File file, byte[] bytes) {
+        if (!ensureDir()) {
+            return;
+        }
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            out.write(bytes);
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to cache " + file.getName(), e);
+            if (out != null) {
+                atomicFile.failWrite(out);
+            }
+        }
+    }
+
+    private boolean ensureDir() {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDir);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2024 the risingOS Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rising.settings.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Varint and string encoding shared by the binary backup format, the restore
+ * journal and the spoofing databases.
+ *
+ * A varint is an unsigned int in little endian groups of 7 bits, with the high bit
+ * of every byte but the last one set. A string is the varint byte length followed
+ * by the UTF-8 bytes. A nullable string stores 0 for null and the byte length plus
+ * one otherwise.
+ *
+ * Reading goes through a {@link Decoder}, which bounds string lengths and reuses
+ * its buffer across strings.
+ */
+public final class BinaryCodec {
+
+    private BinaryCodec() {
+    }
+
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    public static void writeNullableString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Reads varints and strings from one input. Not thread safe.
+     */
+    public static final class Decoder {
+        private final DataInput mIn;
+        private final int mMaxStringLength;
+        private byte[] mBuffer = new byte[256];
+
+        /**
+         * @param maxStringLength longest string in bytes the input may hold; longer
+         *         lengths are treated as corruption
+         */
+        public Decoder(DataInput in, int maxStringLength) {
+            mIn = in;
+            mMaxStringLength = maxStringLength;
+        }
+
+        public int readVarInt() throws IOException {
+            return BinaryCodec.readVarInt(mIn);
+        }
+
+        public String readString() throws IOException {
+            return decode(readVarInt());
+        }
+
+        public String readNullableString() throws IOException {
+            int length = readVarInt();
+            return length == 0 ? null : decode(length - 1);
+        }
+
+        private String decode(int length) throws IOException {
+            if (length < 0 || length > mMaxStringLength) {
+                throw new IOException("Invalid string length " + length);
+            }
+            if (mBuffer.length < length) {
+                mBuffer = new byte[Math.max(length, mBuffer.length * 2)];
+            }
+            mIn.readFully(mBuffer, 0, length);
+            return new String(mBuffer, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}